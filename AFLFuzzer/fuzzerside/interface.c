@@ -7,17 +7,25 @@
 #include <netdb.h>
 #include <sys/socket.h>
 #include <netinet/in.h>
+#include <netinet/tcp.h>
+#include <sys/un.h>
 
 #include <sys/types.h> 
 #include <sys/ipc.h> 
 #include <sys/shm.h> 
+#include <sys/mman.h>
+#include <sys/stat.h>
+#include <fcntl.h>
 #include <sys/wait.h>
+#include <signal.h>
 
 #define FILE_READ_CHUNK 1024
-#define SHM_SIZE 65536
-#define SOCKET_READ_CHUNK 1024 // SHM_SIZE should be divisible by this
+#define DEFAULT_MAP_SIZE 65536
+#define MAX_MAP_SIZE (1 << 20) // the largest map the server uses, see instrumentor.CoverageMap
+#define SOCKET_READ_CHUNK 1024
 
 #define SHM_ENV_VAR "__AFL_SHM_ID"
+#define MAP_SIZE_ENV_VAR "AFL_MAP_SIZE"
 
 #define LOGFILE "/tmp/afl-wrapper.log"
 
@@ -37,10 +45,29 @@
 
 #define DEFAULT_MODE 0
 #define LOCAL_MODE 1
+#define SHARED_MEMORY_MODE 2
+#define BATCH_MODE 3
+#define PERSISTENT_FLAG 0x10
+#define ENCODED_COVERAGE_FLAG 0x20
+
+/* Coverage encodings, see afl.CoverageEncoder */
+#define COVERAGE_FULL 0
+#define COVERAGE_SPARSE 1
+#define COVERAGE_BITMAP 2
+
+/* Layout of the file mapped with the JVM, see afl.SharedMemory */
+#define MAPPED_INPUT_LENGTH 0
+#define MAPPED_COVERAGE_SIZE 4
+#define MAPPED_HEADER_SIZE 16
+#define MAPPED_MAX_INPUT (1 << 20)
 
 uint8_t* trace_bits;
 int prev_location = 0;
 
+/* Size of trace_bits, AFL's map. The server's map may be larger, its coverage is folded in. */
+uint32_t map_size = DEFAULT_MAP_SIZE;
+uint32_t warned_map_size = 0;
+
 /* Stdout is piped to null when running inside AFL, so we have an option to write output to a file */
 FILE* logfile;
 
@@ -72,7 +99,19 @@ void LOG(const char* format, ...) {
   #define LOGIFVERBOSE(...) 
 #endif
 
-int tcp_socket;
+int tcp_socket = -1;
+
+/* Keep one connection to the server open for the lifetime of the fork server */
+uint8_t persistent = 0;
+
+/* Set by the child while it talks to the server, shared with the fork server through an anonymous mapping.
+ * If the child is killed halfway through an exchange the connection is out of sync and has to be reopened. */
+uint8_t* exchange_pending;
+
+/* Set by the child when it dropped the inherited connection and opened its own, in the same mapping.
+ * The server closes the connection after a comm error, so the fork server's copy is dead and has to be
+ * reopened as well. */
+uint8_t* connection_replaced;
 
 /* Set up the TCP connection */
 void setup_tcp_connection(const char* hostname, const char* port) {
@@ -98,15 +137,298 @@ void setup_tcp_connection(const char* hostname, const char* port) {
     DIE("%s\n", strerror(errno));
   }
 
+  /* Requests are written in several small pieces, don't let them wait on delayed ACKs */
+  int nodelay = 1;
+  setsockopt(tcp_socket, IPPROTO_TCP, TCP_NODELAY, &nodelay, sizeof(nodelay));
+
   freeaddrinfo(res);
 }
 
+/* Path of the server's Unix domain socket, connections go through it instead of TCP when set */
+const char* unix_path = NULL;
+
+/* Set up the connection over a Unix domain socket, same framing as over TCP */
+void setup_unix_connection(const char* path) {
+  LOG("Trying to connect to server at %s...\n", path);
+  struct sockaddr_un addr;
+  memset(&addr, 0, sizeof(addr));
+  addr.sun_family = AF_UNIX;
+  if (strlen(path) >= sizeof(addr.sun_path)) {
+    DIE("Unix socket path too long: %s\n", path);
+  }
+  strcpy(addr.sun_path, path);
+
+  tcp_socket = socket(AF_UNIX, SOCK_STREAM, 0);
+  if (tcp_socket == -1) {
+    DIE("%s\n", strerror(errno));
+  }
+
+  if (connect(tcp_socket, (struct sockaddr*) &addr, sizeof(addr)) == -1) {
+    DIE("%s\n", strerror(errno));
+  }
+}
+
+void setup_connection(const char* hostname, const char* port) {
+  if (unix_path) {
+    setup_unix_connection(unix_path);
+  } else {
+    setup_tcp_connection(hostname, port);
+  }
+}
+
+/* Read exactly len bytes from the socket, returns 0 on failure */
+int read_fully(int fd, uint8_t* buf, size_t len) {
+  size_t total = 0;
+  while (total < len) {
+    ssize_t nread = read(fd, buf + total, len - total);
+    if (nread <= 0) {
+      return 0;
+    }
+    total += nread;
+  }
+  return 1;
+}
+
+/* File mapped with the JVM, the input and coverage go through here instead of the socket */
+uint8_t* mapped = NULL;
+int mapped_coverage_size;
+
+void setup_mapped_file(const char* path) {
+  LOG("Mapping shared memory file %s...\n", path);
+  int fd = open(path, O_RDWR);
+  if (fd == -1) {
+    DIE("Failed to open shared memory file: %s\n", strerror(errno));
+  }
+  struct stat st;
+  if (fstat(fd, &st) == -1) {
+    DIE("%s\n", strerror(errno));
+  }
+  mapped = mmap(NULL, st.st_size, PROT_READ | PROT_WRITE, MAP_SHARED, fd, 0);
+  close(fd);
+  if (mapped == MAP_FAILED) {
+    DIE("Failed to map shared memory file: %s\n", strerror(errno));
+  }
+  mapped_coverage_size = *(int*) (mapped + MAPPED_COVERAGE_SIZE);
+  if (st.st_size < MAPPED_HEADER_SIZE + mapped_coverage_size + MAPPED_MAX_INPUT) {
+    DIE("Shared memory file is too small, is the server running?\n");
+  }
+  if (mapped_coverage_size <= 0 || mapped_coverage_size > MAX_MAP_SIZE) {
+    DIE("Invalid coverage size %d in shared memory file\n", mapped_coverage_size);
+  }
+}
+
+/* Copy the input file straight into the mapping */
+void write_mapped_input(const char* filename) {
+  FILE* file = fopen(filename, "r");
+  if (!file) {
+    DIE("Error reading file %s\n", filename);
+  }
+  uint8_t* input = mapped + MAPPED_HEADER_SIZE + mapped_coverage_size;
+  size_t length = fread(input, 1, MAPPED_MAX_INPUT, file);
+  if (ferror(file)) {
+    DIE("Error reading from file\n");
+  }
+  fclose(file);
+  *(int*) (mapped + MAPPED_INPUT_LENGTH) = (int) length;
+  LOG("Wrote %lu bytes to shared memory\n", length);
+}
+
+/* Add the hits of a cell of the server's map to trace_bits */
+void add_coverage(uint32_t index, uint8_t hits) {
+  LOG("%u -> %d\n", index, hits);
+  if (index >= map_size) {
+    index %= map_size;
+  }
+  trace_bits[index] += hits;
+}
+
+/* Expand an encoded coverage payload of a server map with server_size cells into trace_bits,
+ * returns 0 if the payload is malformed */
+int merge_encoded_coverage(uint8_t encoding, uint8_t* payload, uint32_t len, uint32_t server_size) {
+  if (server_size != map_size && server_size != warned_map_size) {
+    LOG("Server's coverage map has %u cells, AFL's %u, set %s=%u for both to match\n", server_size, map_size,
+        MAP_SIZE_ENV_VAR, server_size);
+    warned_map_size = server_size;
+  }
+  if (encoding == COVERAGE_FULL) {
+    if (len > server_size) {
+      return 0;
+    }
+    for (uint32_t i = 0; i < len; i++) {
+      if (payload[i] != 0) {
+        add_coverage(i, payload[i]);
+      }
+    }
+    return 1;
+  } else if (encoding == COVERAGE_SPARSE) {
+    uint32_t pos = 0, index = 0;
+    while (pos < len) {
+      uint32_t delta = 0;
+      int shift = 0;
+      while (pos < len && (payload[pos] & 0x80)) {
+        delta |= (uint32_t) (payload[pos++] & 0x7F) << shift;
+        shift += 7;
+      }
+      if (pos >= len - 1 || shift > 28) {
+        return 0;
+      }
+      delta |= (uint32_t) payload[pos++] << shift;
+      index += delta;
+      if (index >= server_size) {
+        return 0;
+      }
+      add_coverage(index, payload[pos++]);
+    }
+    return 1;
+  } else if (encoding == COVERAGE_BITMAP) {
+    uint32_t bitmap_size = server_size / 8, value = bitmap_size;
+    if (len < bitmap_size) {
+      return 0;
+    }
+    for (uint32_t i = 0; i < server_size; i++) {
+      if (payload[i >> 3] & (1 << (i & 7))) {
+        if (value >= len) {
+          return 0;
+        }
+        add_coverage(i, payload[value++]);
+      }
+    }
+    return 1;
+  }
+  return 0;
+}
+
+/* Read the encoding, map size, payload length and encoded coverage over TCP into trace_bits,
+ * returns 0 on failure. buf holds at least MAX_MAP_SIZE bytes. */
+int read_encoded_coverage(uint8_t* buf) {
+  uint8_t coverage_header[6];
+  if (!read_fully(tcp_socket, coverage_header, 6)) {
+    LOG("Error reading from socket\n");
+    return 0;
+  }
+  if (coverage_header[1] > 30 || (1u << coverage_header[1]) > MAX_MAP_SIZE) {
+    LOG("Unsupported coverage map size 2^%d\n", coverage_header[1]);
+    return 0;
+  }
+  uint32_t server_size = 1u << coverage_header[1];
+  uint32_t payload_len = coverage_header[2] | coverage_header[3] << 8 | coverage_header[4] << 16 | (uint32_t) coverage_header[5] << 24;
+  LOGIFVERBOSE("Coverage encoding %d, %u bytes\n", coverage_header[0], payload_len);
+  if (payload_len > server_size || !read_fully(tcp_socket, buf, payload_len)) {
+    LOG("Error reading from socket\n");
+    return 0;
+  }
+  if (!merge_encoded_coverage(coverage_header[0], buf, payload_len, server_size)) {
+    LOG("Malformed coverage\n");
+    return 0;
+  }
+  return 1;
+}
+
+int write_fully(int fd, const void* buf, size_t len) {
+  size_t total = 0;
+  while (total < len) {
+    ssize_t sent = write(fd, (const uint8_t*) buf + total, len - total);
+    if (sent <= 0) {
+      return 0;
+    }
+    total += sent;
+  }
+  return 1;
+}
+
+/* Send all files as one BATCH MODE request over a fresh connection */
+void send_batch(char* server, char* port, char** filenames, int count) {
+  uint8_t header = BATCH_MODE | ENCODED_COVERAGE_FLAG;
+  setup_connection(server, port);
+  if (!write_fully(tcp_socket, &header, 1) || !write_fully(tcp_socket, &count, 4)) {
+    DIE("Error sending batch header\n");
+  }
+  for (int i = 0; i < count; i++) {
+    FILE* file = fopen(filenames[i], "r");
+    if (!file) {
+      DIE("Error reading file %s\n", filenames[i]);
+    }
+    fseek(file, 0L, SEEK_END);
+    int filesize = ftell(file);
+    rewind(file);
+    uint8_t* input = malloc(filesize > 0 ? filesize : 1);
+    if (fread(input, 1, filesize, file) != (size_t) filesize) {
+      DIE("Error reading from file %s\n", filenames[i]);
+    }
+    fclose(file);
+    if (!write_fully(tcp_socket, &filesize, 4) || !write_fully(tcp_socket, input, filesize)) {
+      DIE("Error sending %s\n", filenames[i]);
+    }
+    free(input);
+  }
+  LOG("Sent batch of %d inputs\n", count);
+}
+
+/* Outside of AFL, run all files in one batch and print "<file> <status> <covered cells>" per file.
+ * Returns the number of crashes. */
+int run_batch(char* server, char* port, char** filenames, int count) {
+  uint8_t* buf = malloc(MAX_MAP_SIZE);
+  int crashes = 0;
+  int i = 0;
+  int try = 0;
+
+  while (i < count) {
+    if (tcp_socket < 0) {
+      send_batch(server, port, filenames, count);
+    }
+
+    /* Results stream back in order, one per input */
+    uint8_t kelinci_status;
+    if (!read_fully(tcp_socket, &kelinci_status, 1)) {
+      DIE("Failure reading status of %s\n", filenames[i]);
+    }
+
+    /* The whole batch was turned away, send it again */
+    if (kelinci_status == STATUS_QUEUE_FULL) {
+      close(tcp_socket);
+      tcp_socket = -1;
+      if (try++ > MAX_TRIES) {
+        DIE("Stopped trying to communicate with server.\n");
+      }
+      usleep(100000);
+      continue;
+    }
+
+    memset(trace_bits, 0, map_size);
+    if (!read_encoded_coverage(buf)) {
+      DIE("Failure reading coverage of %s\n", filenames[i]);
+    }
+    if (kelinci_status == STATUS_COMM_ERROR) {
+      DIE("Server failed to read the batch\n");
+    }
+    int cells = 0;
+    for (uint32_t j = 0; j < map_size; j++) {
+      if (trace_bits[j] != 0) {
+        cells++;
+      }
+    }
+    if (kelinci_status == STATUS_CRASH) {
+      crashes++;
+    }
+    printf("%s\t%d\t%d\n", filenames[i], kelinci_status, cells);
+    i++;
+  }
+  close(tcp_socket);
+  tcp_socket = -1;
+  free(buf);
+  return crashes;
+}
+
 void printUsageAndDie() {
-  DIE("Usage: interface [-s <server>] [-p <port>] <filename>\n");
+  DIE("Usage: interface [-s <server>] [-p <port>] [-u <unix socket>] [-k] [-m <shared memory file>] <filename> [<filename>...]\n");
 }
 
 int main(int argc, char** argv) {
 
+  /* A write to a connection the server closed fails with EPIPE instead of killing the process, which AFL
+   * would count as a crash */
+  signal(SIGPIPE, SIG_IGN);
+
   /* Stdout is piped to null, so write output to a file */
 #ifdef OUTPUT_FILE
   logfile = fopen(LOGFILE, "wb");
@@ -119,6 +441,7 @@ int main(int argc, char** argv) {
   const char* filename;
   char* server = DEFAULT_SERVER;
   char* port = DEFAULT_PORT;
+  char* mapped_path = NULL;
 
   /* Check num of parameters */
   if (argc < 2)
@@ -136,6 +459,18 @@ int main(int argc, char** argv) {
         // set port
 	port = argv[curArg+1];
 	curArg += 2;
+      } else if (argv[curArg][1] == 'u') {
+        // connect over a Unix domain socket instead of TCP
+	unix_path = argv[curArg+1];
+	curArg += 2;
+      } else if (argv[curArg][1] == 'k') {
+        // keep the connection open between executions
+	persistent = 1;
+	curArg += 1;
+      } else if (argv[curArg][1] == 'm') {
+        // exchange input and coverage through a shared memory file
+	mapped_path = argv[curArg+1];
+	curArg += 2;
       } else {
         LOG("Unknown flag: %s\n", argv[curArg]);
 	printUsageAndDie();
@@ -144,17 +479,57 @@ int main(int argc, char** argv) {
       break; // expect filename now
     }
   }
-  if (curArg != argc-1)
+  if (curArg > argc-1)
     printUsageAndDie();
   filename = argv[curArg];
   LOG("input file = %s\n", filename);
 
+  /* AFL++ sizes its map from the same variable */
+  char* map_size_env = getenv(MAP_SIZE_ENV_VAR);
+  if (map_size_env) {
+    long requested = atol(map_size_env);
+    if (requested <= 0) {
+      DIE("Invalid %s: %s\n", MAP_SIZE_ENV_VAR, map_size_env);
+    }
+    map_size = (uint32_t) requested;
+  }
+  LOGIFVERBOSE("Map size %u\n", map_size);
+
+  /* Several files, run them as one batch and report on each, the fork server only ever runs one */
+  if (curArg < argc-1) {
+    if (getenv(SHM_ENV_VAR) || mapped_path) {
+      DIE("Several input files can only be run outside of AFL and without shared memory\n");
+    }
+    trace_bits = (uint8_t*) malloc(map_size);
+    int crashes = run_batch(server, port, argv + curArg, argc - curArg);
+    LOG_AND_CLOSE("Batch finished with %d crashes.\n", crashes);
+    return crashes > 0;
+  }
+
   /* Local mode? */
   uint8_t mode = DEFAULT_MODE;
   if (strcmp(server, "localhost") == 0) {
     LOG("Running in LOCAL MODE.\n");
     mode = LOCAL_MODE;
   }
+  if (mapped_path) {
+    LOG("Running in SHARED MEMORY MODE.\n");
+    mode = SHARED_MEMORY_MODE;
+    setup_mapped_file(mapped_path);
+  }
+
+  if (persistent) {
+    LOG("Using a persistent connection.\n");
+    exchange_pending = mmap(NULL, 2, PROT_READ | PROT_WRITE, MAP_SHARED | MAP_ANONYMOUS, -1, 0);
+    if (exchange_pending == MAP_FAILED) {
+      DIE("Failed to map exchange flags\n");
+    }
+  } else {
+    exchange_pending = malloc(2);
+  }
+  connection_replaced = exchange_pending + 1;
+  *exchange_pending = 0;
+  *connection_replaced = 0;
 
   /* Preamble instrumentation */
   char* shmname = getenv(SHM_ENV_VAR);
@@ -175,6 +550,11 @@ int main(int argc, char** argv) {
     LOGIFVERBOSE("Pointer: %p\n", trace_bits);
     LOG("Shared memory attached. Value at loc 3 = %d\n", trace_bits[3]);
 
+    /* Connect once, every child inherits the socket */
+    if (persistent) {
+      setup_connection(server, port);
+    }
+
     /* Set up the fork server */
     LOG("Starting fork server...\n");
     if (write(199, &status, 4) != 4) {
@@ -205,6 +585,17 @@ int main(int argc, char** argv) {
       }
 
       LOGIFVERBOSE("Status %d \n", status);
+
+      /* The child was killed mid-exchange (e.g. AFL time-out) or had to reconnect after a comm error, start
+       * over on a fresh connection */
+      if (persistent && (*exchange_pending || *connection_replaced)) {
+        LOG("Exchange interrupted or connection replaced, reconnecting.\n");
+        close(tcp_socket);
+        setup_connection(server, port);
+        *exchange_pending = 0;
+        *connection_replaced = 0;
+      }
+
       write(199, &status, 4);
     }
 
@@ -218,7 +609,7 @@ int main(int argc, char** argv) {
 
   } else {
     LOG("Not running within AFL. Shared memory and fork server not set up.\n");
-    trace_bits = (uint8_t*) malloc(SHM_SIZE);
+    trace_bits = (uint8_t*) malloc(map_size);
   }
 
   /* Done with initialization, now let's start the wrapper! */
@@ -227,6 +618,11 @@ int main(int argc, char** argv) {
   char buf[FILE_READ_CHUNK];
   FILE *file;
   uint8_t conf = STATUS_DONE;
+  uint8_t wire_mode = persistent ? (mode | PERSISTENT_FLAG) : mode;
+  if (mode != SHARED_MEMORY_MODE) {
+    wire_mode |= ENCODED_COVERAGE_FLAG;
+  }
+  uint8_t *shared_mem = malloc(MAX_MAP_SIZE);
 
   // try up to MAX_TRIES time to communicate with the server
   do {
@@ -234,10 +630,19 @@ int main(int argc, char** argv) {
     if(try > 0)
       usleep(100000);
 
-    setup_tcp_connection(server, port);
+    if (tcp_socket < 0) {
+      setup_connection(server, port);
+      *connection_replaced = 1;
+    }
+    *exchange_pending = 1;
+
+    /* SHARED MEMORY MODE, the input has to be in place before the server is rung */
+    if (mode == SHARED_MEMORY_MODE) {
+      write_mapped_input(filename);
+    }
 
     /* Send mode */
-    write(tcp_socket, &mode, 1);
+    write(tcp_socket, &wire_mode, 1);
 
     /* LOCAL MODE */
     if (mode == LOCAL_MODE) {
@@ -261,7 +666,7 @@ int main(int argc, char** argv) {
 
     
     /* DEFAULT MODE */
-    } else {
+    } else if (mode == DEFAULT_MODE) {
 
       /* Send file contents */
       file = fopen(filename, "r");
@@ -300,28 +705,38 @@ int main(int argc, char** argv) {
       goto cont;
     }
     LOG("Return kelinci_status = %d\n", status);
+
+    /* Nothing else follows when the server's queue is full */
+    if (kelinci_status == STATUS_QUEUE_FULL) {
+      goto cont;
+    }
   
-    /* Read "shared memory" over TCP */
-    uint8_t *shared_mem = malloc(SHM_SIZE);
-    for (int offset = 0; offset < SHM_SIZE; offset += SOCKET_READ_CHUNK) {
-      nread = read(tcp_socket, shared_mem+offset, SOCKET_READ_CHUNK);
-      if (nread != SOCKET_READ_CHUNK) {
-	LOG("Error reading from socket\n");
-	kelinci_status = STATUS_COMM_ERROR;
-	goto cont;
+    /* Read the coverage straight from the mapping */
+    if (mode == SHARED_MEMORY_MODE) {
+      if (kelinci_status == STATUS_COMM_ERROR) {
+        goto cont;
       }
+      merge_encoded_coverage(COVERAGE_FULL, mapped + MAPPED_HEADER_SIZE, mapped_coverage_size, mapped_coverage_size);
+      goto cont;
     }
 
-    /* If successful, copy over to actual shared memory */
-    for (int i = 0; i < SHM_SIZE; i++) {
-      if (shared_mem[i] != 0) {
-        LOG("%d -> %d\n", i, shared_mem[i]);
-        trace_bits[i] += shared_mem[i];
-      }
+    /* Otherwise read the encoded "shared memory" over TCP and copy it over to actual shared memory */
+    if (!read_encoded_coverage(shared_mem)) {
+      kelinci_status = STATUS_COMM_ERROR;
+      goto cont;
     }
 
-    /* Close socket */
-cont: close(tcp_socket);
+cont:
+    /* A failed exchange leaves the stream out of sync */
+    if (kelinci_status != STATUS_COMM_ERROR) {
+      *exchange_pending = 0;
+    }
+
+    /* Close socket unless it is reused for the next execution */
+    if (!persistent || kelinci_status == STATUS_COMM_ERROR) {
+      close(tcp_socket);
+      tcp_socket = -1;
+    }
 
     /* Only try communicating MAX_TRIES times */
     if (try++ > MAX_TRIES) {
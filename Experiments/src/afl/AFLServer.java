@@ -2,39 +2,115 @@ package afl;
 
 import java.io.File;
 import java.io.IOException;
-import java.io.OutputStream;
 import java.net.BindException;
-import java.net.ServerSocket;
-import java.net.Socket;
-import java.net.SocketTimeoutException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Queue;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import static afl.Kelinci.STATUS_QUEUE_FULL;
 
 /**
+ * Accepts requests from the interface program and hands them off to the fuzzer thread.
+ * <p>
+ * Connections are accepted and watched for incoming data through a {@link Selector}, so a request
+ * is read as soon as its bytes arrive and the fuzzer thread blocking on {@link #poll(long, TimeUnit)}
+ * is woken up immediately instead of polling the queue on an interval. A request is read piece by piece
+ * as the selector reports more of it, never waiting on one connection, so an interface that stalls in
+ * the middle of a request doesn't hold up the others. Its connection is closed if the rest doesn't
+ * arrive in time.
+ * <p>
+ * The server listens either on a TCP port or, when the interface runs on the same machine, on a Unix
+ * domain socket ({@link UnixSockets}, JDK 16 and later) which skips the loopback TCP stack. Both carry the same
+ * requests and responses.
+ * <p>
+ * Requests wait for a worker in an {@link AdmissionQueue}, sized to the rate the workers serve them at.
+ * Requests it turns away are answered with {@code STATUS_QUEUE_FULL} and resent by the interface. Under
+ * {@link AdmissionQueue.Policy#BLOCK} a request that finds the queue full is parked instead: its connection
+ * isn't read from until the request is admitted, while the selector goes on serving every other
+ * connection, and it is only turned away if no room frees up in time.
+ *
  * @author Derrick Lockwood
  * @created 6/24/18.
  */
 public class AFLServer implements Runnable {
 
     private static final Logger LOGGER = Logger.getLogger(AFLServer.class.getName());
-    private static final Queue<FuzzRequest> requestQueue = new ConcurrentLinkedQueue<>();
-    private static final int maxQueue = 10;
+    /**
+     * Longest a request waits for a worker when the server isn't given a queue, in milliseconds.
+     */
+    public static final long DEFAULT_MAX_WAIT = 1000;
 
     static {
         LOGGER.setParent(Logger.getLogger(Kelinci.class.getName()));
     }
 
     private final File tmpfile;
-    private final int port;
-    private boolean isRunning = true;
-    private boolean completed = false;
+    private final SocketAddress address;
+    private final SharedMemory sharedMemory;
+    private final AdmissionQueue<FuzzRequest> requestQueue;
+    private final KelinciStats stats;
+    private volatile boolean isRunning = true;
+    private volatile boolean completed = false;
+    private final Queue<Connection> rearmQueue = new ConcurrentLinkedQueue<>();
+    // requests waiting for room under the BLOCK policy, in arrival order, only touched by the selector thread
+    private final ArrayDeque<Parked> parked = new ArrayDeque<>();
+    private volatile boolean hasParked;
+    // requests whose first bytes arrived but not the rest, oldest first, only touched by the selector thread
+    private final List<FuzzRequest> partial = new ArrayList<>();
+    private volatile Selector selector;
+
+    private static final class Parked {
+        final FuzzRequest request;
+        final long deadline;
+
+        Parked(FuzzRequest request, long deadline) {
+            this.request = request;
+            this.deadline = deadline;
+        }
+    }
 
     public AFLServer(int port) {
-        this.port = port;
+        this(port, null);
+    }
+
+    public AFLServer(int port, SharedMemory sharedMemory) {
+        this(new InetSocketAddress(port), sharedMemory);
+    }
+
+    /**
+     * @param address an {@link InetSocketAddress} to listen on a TCP port or a Unix domain socket address
+     *                from {@link UnixSockets#getAddress(String)}
+     */
+    public AFLServer(SocketAddress address, SharedMemory sharedMemory) {
+        this(address, sharedMemory, new AdmissionQueue<>(AdmissionQueue.Policy.REJECT, 1, DEFAULT_MAX_WAIT));
+    }
+
+    /**
+     * @param requestQueue queue the workers take requests from
+     */
+    public AFLServer(SocketAddress address, SharedMemory sharedMemory, AdmissionQueue<FuzzRequest> requestQueue) {
+        this.address = address;
+        this.sharedMemory = sharedMemory;
+        this.requestQueue = requestQueue;
+        stats = new KelinciStats(requestQueue);
+        requestQueue.setRoomListener(() -> {
+            if (hasParked) {
+                wakeup();
+            }
+        });
         try {
             tmpfile = File.createTempFile("kelinci-input", "");
             tmpfile.deleteOnExit();
@@ -43,8 +119,46 @@ public class AFLServer implements Runnable {
         }
     }
 
-    public FuzzRequest poll() {
-        return requestQueue.poll();
+    /**
+     * Waits up to {@code timeout} for the next request to arrive.
+     *
+     * @return the next request or null if none arrived in time
+     */
+    public FuzzRequest poll(long timeout, TimeUnit unit) throws InterruptedException {
+        return requestQueue.poll(timeout, unit);
+    }
+
+    /**
+     * Records that a worker finished a request in {@code nanos}, see {@link AdmissionQueue#completed(long)}.
+     */
+    public void completed(long nanos) {
+        requestQueue.completed(nanos);
+    }
+
+    public AdmissionQueue<FuzzRequest> getRequestQueue() {
+        return requestQueue;
+    }
+
+    /**
+     * @return the statistics the workers serving this server record into
+     */
+    public KelinciStats getStats() {
+        return stats;
+    }
+
+    /**
+     * Hands a persistent connection back to the server so its next request is picked up once it arrives.
+     */
+    public void rearm(Connection connection) {
+        rearmQueue.offer(connection);
+        wakeup();
+    }
+
+    private void wakeup() {
+        Selector selector = this.selector;
+        if (selector != null) {
+            selector.wakeup();
+        }
     }
 
     public void stop() {
@@ -53,6 +167,7 @@ public class AFLServer implements Runnable {
 
     public void stop(boolean block) {
         isRunning = false;
+        wakeup();
         if (block) {
             while (!completed) {
                 try {
@@ -64,39 +179,267 @@ public class AFLServer implements Runnable {
         }
     }
 
-    @Override
-    public void run() {
-        try (ServerSocket ss = new ServerSocket(port)) {
-            LOGGER.log(Level.INFO, "Server listening on port " + port);
-            ss.setSoTimeout(1000);
-            while (isRunning) {
-                Socket s;
+    private void accept(ServerSocketChannel serverChannel) throws IOException {
+        SocketChannel channel = serverChannel.accept();
+        if (channel == null) {
+            return;
+        }
+        LOGGER.log(Level.FINE, "Connection established.");
+        try {
+            Connection connection = new Connection(channel);
+            channel.register(selector, SelectionKey.OP_READ, connection);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    private void registerRearmed() {
+        Connection connection;
+        while ((connection = rearmQueue.poll()) != null) {
+            try {
+                connection.getChannel().register(selector, SelectionKey.OP_READ, connection);
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Can't wait on persistent connection, closing it.", e);
+                closeQuietly(connection);
+            }
+        }
+    }
+
+    /**
+     * Reads what has arrived of the request on {@code key}'s connection. Once it is complete the connection
+     * isn't watched any more until the request was answered, and the request is added to {@code complete}.
+     */
+    private void read(SelectionKey key, List<FuzzRequest> complete) {
+        Object attachment = key.attachment();
+        FuzzRequest request;
+        if (attachment instanceof FuzzRequest) {
+            request = (FuzzRequest) attachment;
+        } else {
+            request = new FuzzRequest(tmpfile, sharedMemory, (Connection) attachment);
+        }
+        try {
+            if (!request.readAvailable()) {
+                if (attachment != request) {
+                    key.attach(request);
+                    partial.add(request);
+                }
+                return;
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Error reading request, closing connection.", e);
+            stats.recordCommError();
+            partial.remove(request);
+            request.release();
+            closeQuietly(request.connection);
+            return;
+        }
+        if (attachment == request) {
+            partial.remove(request);
+        }
+        key.cancel();
+        complete.add(request);
+    }
+
+    /**
+     * Closes the connections whose request didn't arrive in full before its deadline.
+     */
+    private void expirePartial() {
+        long now = System.nanoTime();
+        // they were started in order and all get the same time, so the oldest expires first
+        while (!partial.isEmpty() && now - partial.get(0).getDeadline() >= 0) {
+            FuzzRequest request = partial.remove(0);
+            LOGGER.log(Level.WARNING, "Request not received in time, closing connection.");
+            stats.recordCommError();
+            request.release();
+            closeQuietly(request.connection);
+        }
+    }
+
+    private void handleRequest(FuzzRequest request) throws IOException {
+        if (request.isEndOfStream()) {
+            LOGGER.log(Level.FINE, "Connection closed by interface.");
+            request.connection.close();
+            return;
+        }
+        if (!parked.isEmpty()) {
+            // behind the requests already waiting for room
+            park(request);
+            return;
+        }
+        FuzzRequest turnedAway = requestQueue.offer(request);
+        if (turnedAway == null) {
+            if (LOGGER.isLoggable(Level.FINE)) {
+                LOGGER.log(Level.FINE, "Request added to queue, " + requestQueue.getDepth() + " of " +
+                        requestQueue.getCapacity() + " waiting.");
+            }
+            return;
+        }
+        if (turnedAway == request && requestQueue.getPolicy() == AdmissionQueue.Policy.BLOCK) {
+            park(request);
+        } else if (turnedAway == request) {
+            LOGGER.log(Level.WARNING, "Queue full, turning request away: " + requestQueue);
+            refuse(request);
+        } else {
+            LOGGER.log(Level.WARNING, "Queue full, shedding oldest request: " + requestQueue);
+            try {
+                refuse(turnedAway);
+            } catch (IOException e) {
+                // only the shed request's connection is broken, not the one being read
+                LOGGER.log(Level.WARNING, "Error turning shed request away, closing its connection.", e);
+                turnedAway.connection.close();
+            }
+        }
+    }
+
+    /**
+     * Holds {@code request} back until there is room, its connection stays unwatched until then.
+     */
+    private void park(FuzzRequest request) {
+        if (LOGGER.isLoggable(Level.FINE)) {
+            LOGGER.log(Level.FINE, "Queue full, parking request: " + requestQueue);
+        }
+        parked.addLast(new Parked(request, System.nanoTime() +
+                TimeUnit.MILLISECONDS.toNanos(requestQueue.getMaxWait())));
+        hasParked = true;
+    }
+
+    /**
+     * Admits the parked requests there is room for, oldest first, and turns away those that waited too long.
+     */
+    private void admitParked() {
+        Parked head;
+        while ((head = parked.peekFirst()) != null) {
+            if (requestQueue.offer(head.request) == null) {
+                parked.pollFirst();
+            } else if (System.nanoTime() - head.deadline >= 0) {
+                parked.pollFirst();
+                requestQueue.reject();
+                LOGGER.log(Level.WARNING, "No room in time, turning parked request away: " + requestQueue);
                 try {
-                    s = ss.accept();
-                } catch (SocketTimeoutException e) {
-                    continue;
+                    refuse(head.request);
+                } catch (IOException e) {
+                    LOGGER.log(Level.WARNING, "Error turning parked request away, closing its connection.", e);
+                    stats.recordCommError();
+                    closeQuietly(head.request.connection);
                 }
-                LOGGER.log(Level.INFO, "Connection established.");
+            } else {
+                break;
+            }
+        }
+        hasParked = !parked.isEmpty();
+    }
 
-                boolean status = false;
-                if (requestQueue.size() < maxQueue) {
-                    LOGGER.log(Level.INFO, "Handling request 1 of " + (requestQueue.size() + 1));
-                    status = requestQueue.offer(new FuzzRequest(tmpfile, s));
-                    LOGGER.log(Level.INFO, "Request added to queue: " + status);
+    /**
+     * @return milliseconds until the oldest parked request has to be turned away or the oldest partly read
+     * request times out, 0 to wait without limit
+     */
+    private long getSelectTimeout() {
+        Parked head = parked.peekFirst();
+        long deadline;
+        if (partial.isEmpty()) {
+            if (head == null) {
+                return 0;
+            }
+            deadline = head.deadline;
+        } else {
+            deadline = partial.get(0).getDeadline();
+            if (head != null && head.deadline - deadline < 0) {
+                deadline = head.deadline;
+            }
+        }
+        return Math.max(1, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime()) + 1);
+    }
+
+    private static void closeQuietly(Connection connection) {
+        try {
+            connection.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    /**
+     * Answers {@code request} with {@code STATUS_QUEUE_FULL} so the interface sends it again.
+     */
+    private void refuse(FuzzRequest request) throws IOException {
+        Connection connection = request.connection;
+        request.release();
+        connection.write(STATUS_QUEUE_FULL);
+        if (request.isPersistent()) {
+            // the interface resends the request over the same connection
+            connection.getChannel().register(selector, SelectionKey.OP_READ, connection);
+            return;
+        }
+        connection.shutdown();
+        LOGGER.log(Level.WARNING, "Connection closed.");
+    }
+
+    private ServerSocketChannel openServerChannel() throws IOException {
+        if (UnixSockets.isUnixAddress(address)) {
+            // a socket file left behind by an earlier run would make the bind fail
+            File socketFile = UnixSockets.getPath(address).toFile();
+            Files.deleteIfExists(socketFile.toPath());
+            socketFile.deleteOnExit();
+            return UnixSockets.openServerChannel();
+        }
+        return ServerSocketChannel.open();
+    }
+
+    @Override
+    public void run() {
+        try (Selector selector = Selector.open(); ServerSocketChannel ss = openServerChannel()) {
+            this.selector = selector;
+            ss.bind(address);
+            ss.configureBlocking(false);
+            ss.register(selector, SelectionKey.OP_ACCEPT);
+            LOGGER.log(Level.INFO, "Server listening on " + address);
+            List<FuzzRequest> complete = new ArrayList<>();
+            while (isRunning) {
+                selector.select(getSelectTimeout());
+                registerRearmed();
+                admitParked();
+                expirePartial();
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept((ServerSocketChannel) key.channel());
+                    } else if (key.isReadable()) {
+                        read(key, complete);
+                    }
                 }
-                if (!status) {
-                    LOGGER.log(Level.WARNING, "Queue full.");
-                    OutputStream os = s.getOutputStream();
-                    os.write(STATUS_QUEUE_FULL);
-                    os.flush();
-                    s.shutdownOutput();
-                    s.shutdownInput();
-                    s.close();
-                    LOGGER.log(Level.WARNING, "Connection closed.");
+                if (!complete.isEmpty()) {
+                    // Flush the cancelled keys so the channels can be registered again once answered
+                    selector.selectNow();
+                    for (FuzzRequest request : complete) {
+                        try {
+                            handleRequest(request);
+                        } catch (IOException e) {
+                            LOGGER.log(Level.WARNING, "Error handling request, closing connection.", e);
+                            stats.recordCommError();
+                            request.release();
+                            request.connection.close();
+                        }
+                    }
+                    complete.clear();
                 }
             }
+            for (FuzzRequest reading : partial) {
+                reading.release();
+                closeQuietly(reading.connection);
+            }
+            partial.clear();
+            for (Parked waiting : parked) {
+                waiting.request.release();
+                closeQuietly(waiting.request.connection);
+            }
+            parked.clear();
         } catch (BindException be) {
-            LOGGER.log(Level.SEVERE, "Unable to bind to port " + port);
+            LOGGER.log(Level.SEVERE, "Unable to bind to " + address);
             System.exit(1);
         } catch (Exception e) {
             LOGGER.log(Level.SEVERE, "Exception in request server");
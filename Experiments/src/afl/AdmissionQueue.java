@@ -0,0 +1,280 @@
+package afl;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounded queue between the {@link AFLServer} and the workers whose capacity follows how fast the
+ * workers actually drain it.
+ * <p>
+ * Workers report how long each request took with {@link #completed(long)}, the queue keeps a moving
+ * average of it and sizes itself so the last request admitted is picked up within {@code maxWait}:
+ * with {@code w} workers each taking {@code s} per request that is {@code maxWait * w / s} requests,
+ * never less than one per worker. A request that would wait longer is better turned away early, the
+ * interface retries it, than left in the queue until AFL counts it as a hang.
+ * <p>
+ * When the queue is full the {@link Policy} decides what happens to a new request. Offering never waits,
+ * the queue is fed from the server's selector thread which must keep reading the other connections.
+ * Depth and counts of admitted, rejected and shed requests are kept as metrics.
+ *
+ * @author Derrick Lockwood
+ * @created 2026-10-17.
+ */
+public class AdmissionQueue<E> {
+
+    /**
+     * Capacity until the first request has been timed, the old fixed queue length.
+     */
+    public static final int INITIAL_CAPACITY = 10;
+    public static final int MAX_CAPACITY = 1024;
+    /**
+     * Weight of the newest service time in the moving average.
+     */
+    private static final double ALPHA = 0.2;
+
+    public enum Policy {
+        /**
+         * Turn the new request away right away.
+         */
+        REJECT,
+        /**
+         * Leave the new request with the caller, which holds it back without reading more from its
+         * connection and offers it again once the room listener is called, turning it away if no room
+         * frees up within {@code maxWait}, see {@link #setRoomListener(Runnable)} and {@link #reject()}.
+         */
+        BLOCK,
+        /**
+         * Admit the new request and turn away the oldest one, which has waited longest and is the most
+         * likely to time out in the interface anyway.
+         */
+        SHED_OLDEST;
+
+        public static Policy parse(String name) {
+            return valueOf(name.trim().toUpperCase());
+        }
+    }
+
+    private final Policy policy;
+    private final int workers;
+    private final long maxWaitNanos;
+    private final ArrayDeque<E> queue = new ArrayDeque<>();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final LongAdder admitted = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder shed = new LongAdder();
+    private final LongAdder completed = new LongAdder();
+    private volatile int capacity;
+    private volatile int depth;
+    private volatile int peakDepth;
+    private volatile double serviceNanos;
+    private volatile Runnable roomListener;
+
+    /**
+     * @param workers number of workers taking requests from the queue
+     * @param maxWait longest a request should wait in the queue in milliseconds
+     */
+    public AdmissionQueue(Policy policy, int workers, long maxWait) {
+        this.policy = policy;
+        this.workers = Math.max(1, workers);
+        this.maxWaitNanos = TimeUnit.MILLISECONDS.toNanos(maxWait);
+        capacity = Math.min(MAX_CAPACITY, Math.max(INITIAL_CAPACITY, this.workers));
+    }
+
+    /**
+     * Admits {@code e} if there is room, otherwise applies the policy.
+     *
+     * @return null if {@code e} was admitted without turning anything away, otherwise the request that
+     * was turned away, {@code e} itself or the oldest one when shedding. With {@link Policy#BLOCK} a
+     * returned {@code e} isn't counted as rejected yet, it is the caller's to hold on to.
+     */
+    public E offer(E e) {
+        lock.lock();
+        try {
+            if (queue.size() >= capacity) {
+                switch (policy) {
+                    case BLOCK:
+                        return e;
+                    case SHED_OLDEST:
+                        E oldest = queue.pollFirst();
+                        if (oldest != null) {
+                            shed.increment();
+                            enqueue(e);
+                            return oldest;
+                        }
+                        break;
+                    default:
+                        rejected.increment();
+                        return e;
+                }
+            }
+            enqueue(e);
+            return null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void enqueue(E e) {
+        queue.addLast(e);
+        admitted.increment();
+        depth = queue.size();
+        if (depth > peakDepth) {
+            peakDepth = depth;
+        }
+        notEmpty.signal();
+    }
+
+    public E poll() {
+        lock.lock();
+        try {
+            return dequeue();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Waits up to {@code timeout} for a request to be admitted.
+     *
+     * @return the oldest request or null if none arrived in time
+     */
+    public E poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        lock.lockInterruptibly();
+        try {
+            while (queue.isEmpty()) {
+                if (nanos <= 0) {
+                    return null;
+                }
+                nanos = notEmpty.awaitNanos(nanos);
+            }
+            return dequeue();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private E dequeue() {
+        E e = queue.pollFirst();
+        if (e != null) {
+            depth = queue.size();
+            notifyRoom();
+        }
+        return e;
+    }
+
+    private void notifyRoom() {
+        Runnable listener = roomListener;
+        if (listener != null) {
+            listener.run();
+        }
+    }
+
+    /**
+     * @param listener called whenever room frees up, under the queue's lock so it must not block
+     */
+    public void setRoomListener(Runnable listener) {
+        roomListener = listener;
+    }
+
+    /**
+     * Counts a request held back under {@link Policy#BLOCK} that found no room within {@code maxWait}.
+     */
+    public void reject() {
+        rejected.increment();
+    }
+
+    /**
+     * Records that a worker finished a request taken from the queue in {@code nanos} and resizes the
+     * queue to the new service rate.
+     */
+    public void completed(long nanos) {
+        lock.lock();
+        try {
+            completed.increment();
+            double average = serviceNanos == 0 ? nanos : ALPHA * nanos + (1 - ALPHA) * serviceNanos;
+            serviceNanos = Math.max(1, average);
+            long fits = (long) Math.ceil(maxWaitNanos * (double) workers / serviceNanos);
+            int newCapacity = (int) Math.max(workers, Math.min(MAX_CAPACITY, fits));
+            boolean grown = newCapacity > capacity;
+            capacity = newCapacity;
+            if (grown) {
+                notifyRoom();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public Policy getPolicy() {
+        return policy;
+    }
+
+    /**
+     * @return longest a request should wait for a worker in milliseconds
+     */
+    public long getMaxWait() {
+        return TimeUnit.NANOSECONDS.toMillis(maxWaitNanos);
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public int getDepth() {
+        return depth;
+    }
+
+    public int getPeakDepth() {
+        return peakDepth;
+    }
+
+    public long getAdmittedCount() {
+        return admitted.sum();
+    }
+
+    public long getRejectedCount() {
+        return rejected.sum();
+    }
+
+    public long getShedCount() {
+        return shed.sum();
+    }
+
+    public long getCompletedCount() {
+        return completed.sum();
+    }
+
+    /**
+     * @return moving average of the time a worker takes per request in milliseconds, 0 before the first
+     */
+    public double getServiceTime() {
+        return serviceNanos / 1e6;
+    }
+
+    /**
+     * @return requests per second all workers together can serve at the current service time
+     */
+    public double getServiceRate() {
+        double nanos = serviceNanos;
+        return nanos == 0 ? 0 : workers * 1e9 / nanos;
+    }
+
+    @Override
+    public String toString() {
+        return "AdmissionQueue{" +
+                "policy=" + policy +
+                ", depth=" + depth +
+                ", capacity=" + capacity +
+                ", peakDepth=" + peakDepth +
+                ", admitted=" + admitted +
+                ", rejected=" + rejected +
+                ", shed=" + shed +
+                ", serviceTime=" + String.format("%.3fms", getServiceTime()) +
+                '}';
+    }
+}
@@ -0,0 +1,122 @@
+package afl;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+
+/**
+ * A connection from the interface program, over TCP or a Unix domain socket.
+ * <p>
+ * The channel stays in non-blocking mode so the server's selector can watch it. Reads and writes go
+ * straight between the channel and the caller's buffers, which callers keep and reuse (the pooled input
+ * buffers, the encoder's response), so serving a request allocates nothing. Reads only take what has
+ * arrived, the server reads a request piece by piece as the selector reports more of it. Writes wait on a
+ * private selector when the channel isn't ready, up to the deadline set with {@link #setTimeout(int)},
+ * which works the same for both kinds of socket (Unix domain channels have no socket adaptor and so no
+ * SO_TIMEOUT).
+ *
+ * @author Derrick Lockwood
+ * @created 2026-10-17.
+ */
+public class Connection implements Closeable {
+
+    private final SocketChannel channel;
+    // the status byte goes through this one
+    private final ByteBuffer single = ByteBuffer.allocate(1);
+    private Selector waitSelector;
+    private long deadline = Long.MAX_VALUE;
+
+    public Connection(SocketChannel channel) throws IOException {
+        this.channel = channel;
+        channel.configureBlocking(false);
+        if (channel.getLocalAddress() instanceof InetSocketAddress) {
+            // responses are written as a status byte followed by the coverage, send them without delay
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        }
+    }
+
+    public SocketChannel getChannel() {
+        return channel;
+    }
+
+    /**
+     * Writes fail with a {@link SocketTimeoutException} once {@code millis} have passed.
+     */
+    public void setTimeout(int millis) {
+        deadline = System.currentTimeMillis() + millis;
+    }
+
+    /**
+     * Reads what has already arrived into {@code buffer}, between its position and limit, without waiting
+     * for more.
+     *
+     * @return the number of bytes read, 0 if none are waiting, or -1 at the end of the stream
+     */
+    public int readNow(ByteBuffer buffer) throws IOException {
+        return channel.read(buffer);
+    }
+
+    public void write(int b) throws IOException {
+        single.clear();
+        single.put(0, (byte) b);
+        write(single);
+    }
+
+    /**
+     * Writes {@code buffer} from its position to its limit.
+     */
+    public void write(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.write(buffer) == 0) {
+                await(SelectionKey.OP_WRITE);
+            }
+        }
+    }
+
+    private void await(int op) throws IOException {
+        long remaining = deadline - System.currentTimeMillis();
+        if (remaining <= 0) {
+            throw new SocketTimeoutException("Timed out waiting on connection");
+        }
+        if (waitSelector == null) {
+            waitSelector = Selector.open();
+        }
+        SelectionKey key = channel.register(waitSelector, op);
+        try {
+            waitSelector.select(remaining);
+        } finally {
+            key.cancel();
+            // flush the cancelled key so the channel can be registered again on the next wait
+            waitSelector.selectNow();
+        }
+    }
+
+    /**
+     * Shuts down both directions, letting the interface see the end of the stream, and closes.
+     */
+    public void shutdown() throws IOException {
+        try {
+            channel.shutdownOutput();
+            channel.shutdownInput();
+        } finally {
+            close();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            if (waitSelector != null) {
+                waitSelector.close();
+            }
+        } finally {
+            channel.close();
+        }
+    }
+}
@@ -0,0 +1,201 @@
+package afl;
+
+import method.MethodData;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+import static afl.Kelinci.STATUS_CRASH;
+import static afl.Kelinci.STATUS_SUCCESS;
+import static afl.Kelinci.STATUS_TIMEOUT;
+
+/**
+ * Replays a directory of inputs, an AFL queue or a corpus, across all workers of an engine at once.
+ * <p>
+ * Every worker takes the next input not yet taken, so the shards balance themselves when some inputs run
+ * much longer than others, and runs it on its own session and readers behind its own
+ * {@link ExecutionWatchdog}. One line per input is appended to the summary file as soon as it finishes:
+ * <pre>
+ * status,duration_ms,allocated_bytes,coverage_hash,input
+ * </pre>
+ * The input's name comes last as AFL's queue names contain commas. Inputs already in the summary file are
+ * skipped, so an interrupted replay is resumed by running it again with the same file.
+ *
+ * @author Derrick Lockwood
+ * @created 2026-10-17.
+ */
+public class CorpusReplay {
+
+    public static final String HEADER = "status,duration_ms,allocated_bytes,coverage_hash,input";
+    private static final int PROGRESS_INTERVAL = 1000;
+    private static final Logger LOGGER = Logger.getLogger(CorpusReplay.class.getName());
+
+    static {
+        LOGGER.setParent(Logger.getLogger(Kelinci.class.getName()));
+    }
+
+    private final List<FuzzerWorker> workers;
+    private final int[] statusCounts = new int[3];
+    private BufferedWriter summaryWriter;
+
+    public CorpusReplay(List<FuzzerWorker> workers) {
+        this.workers = workers;
+    }
+
+    /**
+     * Replays every input in {@code directory} not yet in {@code summaryFile}, blocking until all are done.
+     *
+     * @return the number of inputs replayed, not counting those skipped
+     */
+    public int run(File directory, File summaryFile) throws IOException, InterruptedException {
+        Set<String> done = readSummary(summaryFile);
+        List<File> inputs = new ArrayList<>();
+        for (File file : Objects.requireNonNull(directory.listFiles())) {
+            if (file.isFile() && !file.getName().startsWith(".") && !done.contains(file.getName())) {
+                inputs.add(file);
+            }
+        }
+        // stable order so a resumed replay carries on where the last one stopped
+        inputs.sort(null);
+        LOGGER.log(Level.INFO, "Replaying " + inputs.size() + " inputs on " + workers.size() + " workers, " +
+                done.size() + " already in " + summaryFile.getPath());
+
+        boolean newFile = summaryFile.length() == 0;
+        AtomicInteger next = new AtomicInteger();
+        AtomicInteger finished = new AtomicInteger();
+        try (BufferedWriter writer = new BufferedWriter(new FileWriter(summaryFile, true))) {
+            summaryWriter = writer;
+            if (newFile) {
+                writeLine(HEADER);
+            }
+            List<Thread> threads = new ArrayList<>();
+            for (FuzzerWorker worker : workers) {
+                // the GC measuring the heap after every run would stop all shards at once
+                worker.setMeasureHeap(false);
+                Thread thread = new Thread(() -> replay(worker, inputs, next, finished),
+                        "kelinci-replay-" + worker.getId());
+                threads.add(thread);
+                thread.start();
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+        } finally {
+            summaryWriter = null;
+        }
+        LOGGER.log(Level.INFO, "Replay finished, " + statusCounts[STATUS_SUCCESS] + " succeeded, " +
+                statusCounts[STATUS_CRASH] + " crashed, " + statusCounts[STATUS_TIMEOUT] + " timed out");
+        return finished.get();
+    }
+
+    private void replay(FuzzerWorker worker, List<File> inputs, AtomicInteger next, AtomicInteger finished) {
+        ExecutionWatchdog watchdog = worker.createWatchdog();
+        try {
+            int i;
+            while ((i = next.getAndIncrement()) < inputs.size()) {
+                File input = inputs.get(i);
+                MethodData methodData;
+                try {
+                    methodData = worker.replay(watchdog.getExecutorService(), input);
+                } catch (IOException e) {
+                    LOGGER.log(Level.SEVERE, "Error reading from file " + input.getPath(), e);
+                    continue;
+                }
+                int status = FuzzerWorker.getStatus(methodData);
+                if (status == STATUS_CRASH) {
+                    FuzzerWorker.logCrash(methodData.getReturnException());
+                }
+                if (status == STATUS_TIMEOUT) {
+                    watchdog.check();
+                }
+                long duration = methodData.getDuration() == null ? -1 : methodData.getDuration().toMillis();
+                String line = getStatusName(status) + "," + duration + "," + methodData.getAllocatedBytes() + "," +
+                        hash(worker.getCoverage()) + "," + input.getName();
+                synchronized (this) {
+                    statusCounts[status]++;
+                    writeLine(line);
+                }
+                int count = finished.incrementAndGet();
+                if (count % PROGRESS_INTERVAL == 0) {
+                    LOGGER.log(Level.INFO, "Replayed " + count + " of " + inputs.size());
+                }
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.SEVERE, "Can't write replay summary, stopping worker " + worker.getId(), e);
+        } finally {
+            watchdog.shutdownNow();
+        }
+    }
+
+    private void writeLine(String line) throws IOException {
+        summaryWriter.write(line);
+        summaryWriter.write('\n');
+        // a line is only written whole, an interrupted replay loses at most the inputs still running
+        summaryWriter.flush();
+    }
+
+    /**
+     * Reads the inputs already replayed from a summary file, cutting off a line left half written.
+     */
+    private static Set<String> readSummary(File summaryFile) throws IOException {
+        Set<String> done = new HashSet<>();
+        if (!summaryFile.exists()) {
+            return done;
+        }
+        try (RandomAccessFile file = new RandomAccessFile(summaryFile, "rw")) {
+            long length = file.length();
+            while (length > 0) {
+                file.seek(length - 1);
+                if (file.read() == '\n') {
+                    break;
+                }
+                length--;
+            }
+            file.setLength(length);
+        }
+        try (BufferedReader reader = new BufferedReader(new FileReader(summaryFile))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] columns = line.split(",", 5);
+                if (columns.length == 5 && !line.equals(HEADER)) {
+                    done.add(columns[4]);
+                }
+            }
+        }
+        return done;
+    }
+
+    private static String getStatusName(int status) {
+        switch (status) {
+            case STATUS_SUCCESS:
+                return "success";
+            case STATUS_TIMEOUT:
+                return "timeout";
+            default:
+                return "crash";
+        }
+    }
+
+    /**
+     * @return CRC32 of the coverage map, equal for runs that took the same paths the same number of times
+     */
+    static String hash(byte[] coverage) {
+        CRC32 crc32 = new CRC32();
+        crc32.update(coverage);
+        return String.format("%08x", crc32.getValue());
+    }
+}
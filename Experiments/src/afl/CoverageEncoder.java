@@ -0,0 +1,149 @@
+package afl;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Encodes a response (status and coverage) into a reusable buffer so that only the touched cells of the
+ * coverage map go over the wire.
+ * <p>
+ * The response is the status byte, an encoding byte, the size of the map as a power of two (one byte),
+ * the payload length (int, little endian) and the payload. The smallest of the following payloads is
+ * picked:
+ * <ul>
+ * <li>{@link #FULL}: the whole map</li>
+ * <li>{@link #SPARSE}: for every non-zero cell, the distance to the previous non-zero cell as an
+ * unsigned LEB128 varint followed by the value</li>
+ * <li>{@link #BITMAP}: one bit per cell marking the non-zero cells, followed by their values</li>
+ * </ul>
+ * Given the cells a run hit, only those are read instead of the whole map. The interface program expands
+ * the payload back into AFL's trace bits, folding it in if AFL's map is smaller than the server's.
+ *
+ * @author Derrick Lockwood
+ * @created 2026-10-17.
+ */
+public class CoverageEncoder {
+
+    public static final byte FULL = 0;
+    public static final byte SPARSE = 1;
+    public static final byte BITMAP = 2;
+    static final int HEADER_SIZE = 7;
+
+    private byte[] buffer = new byte[0];
+    private ByteBuffer response = ByteBuffer.wrap(buffer);
+    private int length;
+
+    /**
+     * @return the response, valid up to {@link #getLength()} until the next call to {@link #encode(int, byte[])}
+     */
+    byte[] getBuffer() {
+        return buffer;
+    }
+
+    int getLength() {
+        return length;
+    }
+
+    /**
+     * @return the response as a buffer ready to be written, the same one until the map outgrows it
+     */
+    public ByteBuffer getResponse() {
+        response.clear();
+        response.limit(length);
+        return response;
+    }
+
+    public byte encode(int status, byte[] mem) {
+        return encode(status, mem, null, -1);
+    }
+
+    /**
+     * @param hits     indices of the non-zero cells of {@code mem} in ascending order, only they are read
+     * @param hitCount number of {@code hits}, -1 to find the non-zero cells by reading all of {@code mem}
+     */
+    public byte encode(int status, byte[] mem, int[] hits, int hitCount) {
+        if (buffer.length < HEADER_SIZE + mem.length) {
+            buffer = new byte[HEADER_SIZE + mem.length];
+            response = ByteBuffer.wrap(buffer);
+        }
+        int cells = hitCount < 0 ? mem.length : hitCount;
+        int count = 0;
+        int sparseSize = 0;
+        int previous = 0;
+        for (int j = 0; j < cells; j++) {
+            int i = hitCount < 0 ? j : hits[j];
+            if (mem[i] != 0) {
+                count++;
+                sparseSize += varintSize(i - previous) + 1;
+                previous = i;
+            }
+        }
+        int bitmapSize = (mem.length + 7) / 8 + count;
+        byte encoding;
+        int payload;
+        if (sparseSize < mem.length && sparseSize <= bitmapSize) {
+            encoding = SPARSE;
+            payload = writeSparse(mem, hits, hitCount);
+        } else if (bitmapSize < mem.length) {
+            encoding = BITMAP;
+            payload = writeBitmap(mem, count, hits, hitCount);
+        } else {
+            encoding = FULL;
+            System.arraycopy(mem, 0, buffer, HEADER_SIZE, mem.length);
+            payload = mem.length;
+        }
+        buffer[0] = (byte) status;
+        buffer[1] = encoding;
+        buffer[2] = (byte) Integer.numberOfTrailingZeros(mem.length);
+        buffer[3] = (byte) payload;
+        buffer[4] = (byte) (payload >>> 8);
+        buffer[5] = (byte) (payload >>> 16);
+        buffer[6] = (byte) (payload >>> 24);
+        length = HEADER_SIZE + payload;
+        return encoding;
+    }
+
+    private int writeSparse(byte[] mem, int[] hits, int hitCount) {
+        int position = HEADER_SIZE;
+        int previous = 0;
+        int cells = hitCount < 0 ? mem.length : hitCount;
+        for (int j = 0; j < cells; j++) {
+            int i = hitCount < 0 ? j : hits[j];
+            if (mem[i] != 0) {
+                int delta = i - previous;
+                while ((delta & ~0x7F) != 0) {
+                    buffer[position++] = (byte) ((delta & 0x7F) | 0x80);
+                    delta >>>= 7;
+                }
+                buffer[position++] = (byte) delta;
+                buffer[position++] = mem[i];
+                previous = i;
+            }
+        }
+        return position - HEADER_SIZE;
+    }
+
+    private int writeBitmap(byte[] mem, int count, int[] hits, int hitCount) {
+        int bitmapSize = (mem.length + 7) / 8;
+        int position = HEADER_SIZE + bitmapSize;
+        Arrays.fill(buffer, HEADER_SIZE, position, (byte) 0);
+        int cells = hitCount < 0 ? mem.length : hitCount;
+        for (int j = 0; j < cells; j++) {
+            int i = hitCount < 0 ? j : hits[j];
+            if (mem[i] != 0) {
+                buffer[HEADER_SIZE + (i >>> 3)] |= 1 << (i & 7);
+                buffer[position++] = mem[i];
+            }
+        }
+        return bitmapSize + count;
+    }
+
+    private static int varintSize(int value) {
+        int size = 1;
+        while ((value & ~0x7F) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+}
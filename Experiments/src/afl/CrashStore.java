@@ -0,0 +1,276 @@
+package afl;
+
+import method.MethodCallSession;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Instant;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+
+/**
+ * Buckets crashes by where they happened and keeps one input per bucket.
+ * <p>
+ * The bucket of a crash is a hash of the root cause's type and its top frames, normalized so the same bug
+ * lands in the same bucket across runs: reflection frames and the fuzzer's own frames below the target
+ * are skipped, line numbers left out and the random suffixes ByteBuddy and lambdas give generated names
+ * are stripped. Every bucket gets a directory in the crash directory holding the smallest input seen to
+ * hit it and the stack trace of the first crash, {@code buckets.csv} lists each bucket with its count and
+ * when it was first and last seen.
+ * <p>
+ * Only a new bucket or a smaller input is written to disk and logged at WARNING, a repeated crash just
+ * bumps the bucket's count. The summary is rewritten when buckets change and otherwise at most every
+ * {@link #FLUSH_INTERVAL} milliseconds. Buckets already in the summary are picked up again on start, so
+ * counts carry over a restarted process.
+ *
+ * @author Derrick Lockwood
+ * @created 2026-10-17.
+ */
+public class CrashStore {
+
+    public static final String SUMMARY = "buckets.csv";
+    public static final String INPUT = "input";
+    public static final String STACK_TRACE = "stacktrace.txt";
+    public static final long FLUSH_INTERVAL = 10000;
+    private static final String HEADER = "bucket,count,first_seen,last_seen,input_size,exception";
+    private static final Pattern GENERATED_SUFFIX = Pattern.compile(
+            "\\$(original|accessor|ByteBuddy|auxiliary)\\$[A-Za-z0-9]+|\\$\\$Lambda\\$[0-9]+(/0x[0-9a-f]+)?");
+    private static final String SESSION_CLASS = MethodCallSession.class.getName();
+    private static final Logger LOGGER = Logger.getLogger(CrashStore.class.getName());
+
+    static {
+        LOGGER.setParent(Logger.getLogger(Kelinci.class.getName()));
+    }
+
+    /**
+     * Writes an input to the file given, called only when the input is to be kept.
+     */
+    public interface InputWriter {
+        void write(File file) throws IOException;
+    }
+
+    private final File directory;
+    private final int frames;
+    private final Map<String, Bucket> buckets = new LinkedHashMap<>();
+    private long lastFlush;
+
+    /**
+     * @param frames number of frames from the top of the root cause's stack that make up a bucket
+     */
+    public CrashStore(File directory, int frames) throws IOException {
+        this.directory = directory;
+        this.frames = frames;
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Can't create crash directory " + directory.getPath());
+        }
+        load();
+    }
+
+    /**
+     * Records a crash, writing the input with {@code writer} if it opens a new bucket or is smaller than the
+     * bucket's current input.
+     *
+     * @return the bucket the crash fell in
+     */
+    public synchronized Bucket record(Throwable throwable, long inputSize, InputWriter writer) throws IOException {
+        Throwable rootCause = getRootCause(throwable);
+        String signature = getSignature(rootCause, frames);
+        String id = hash(signature);
+        long now = System.currentTimeMillis();
+        Bucket bucket = buckets.get(id);
+        boolean changed = false;
+        if (bucket == null) {
+            bucket = new Bucket(id, rootCause.getClass().getName(), now);
+            buckets.put(id, bucket);
+            File bucketDirectory = getDirectory(bucket);
+            if (!bucketDirectory.isDirectory() && !bucketDirectory.mkdirs()) {
+                throw new IOException("Can't create crash bucket directory " + bucketDirectory.getPath());
+            }
+            try (PrintWriter printWriter = new PrintWriter(new File(bucketDirectory, STACK_TRACE),
+                    StandardCharsets.UTF_8.name())) {
+                printWriter.println(signature);
+                printWriter.println();
+                throwable.printStackTrace(printWriter);
+            }
+            LOGGER.log(Level.WARNING, "New crash bucket " + id, throwable);
+            changed = true;
+        }
+        bucket.count++;
+        bucket.lastSeen = now;
+        if (bucket.inputSize < 0 || inputSize < bucket.inputSize) {
+            // written next to the kept input and moved over it so a half written input never replaces it
+            File input = getInput(bucket);
+            File tmp = new File(input.getPath() + ".tmp");
+            writer.write(tmp);
+            Files.move(tmp.toPath(), input.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            bucket.inputSize = inputSize;
+            changed = true;
+        }
+        if (!changed) {
+            LOGGER.log(Level.FINE, "Crash in bucket " + id + ", seen " + bucket.count + " times");
+        }
+        if (changed || now - lastFlush >= FLUSH_INTERVAL) {
+            flush();
+        }
+        return bucket;
+    }
+
+    public synchronized int getBucketCount() {
+        return buckets.size();
+    }
+
+    public File getDirectory(Bucket bucket) {
+        return new File(directory, bucket.id);
+    }
+
+    public File getInput(Bucket bucket) {
+        return new File(getDirectory(bucket), INPUT);
+    }
+
+    /**
+     * Rewrites the summary with the current counts.
+     */
+    public synchronized void flush() throws IOException {
+        File summary = new File(directory, SUMMARY);
+        File tmp = new File(directory, SUMMARY + ".tmp");
+        try (BufferedWriter writer = new BufferedWriter(new FileWriter(tmp))) {
+            writer.write(HEADER);
+            writer.write('\n');
+            for (Bucket bucket : buckets.values()) {
+                writer.write(bucket.id + "," + bucket.count + "," + Instant.ofEpochMilli(bucket.firstSeen) + "," +
+                        Instant.ofEpochMilli(bucket.lastSeen) + "," + bucket.inputSize + "," + bucket.exception);
+                writer.write('\n');
+            }
+        }
+        Files.move(tmp.toPath(), summary.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        lastFlush = System.currentTimeMillis();
+    }
+
+    private void load() throws IOException {
+        File summary = new File(directory, SUMMARY);
+        if (!summary.exists()) {
+            return;
+        }
+        try (BufferedReader reader = new BufferedReader(new FileReader(summary))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] columns = line.split(",", 6);
+                if (columns.length != 6 || line.equals(HEADER)) {
+                    continue;
+                }
+                try {
+                    Bucket bucket = new Bucket(columns[0], columns[5], Instant.parse(columns[2]).toEpochMilli());
+                    bucket.count = Long.parseLong(columns[1]);
+                    bucket.lastSeen = Instant.parse(columns[3]).toEpochMilli();
+                    bucket.inputSize = getInput(bucket).exists() ? Long.parseLong(columns[4]) : -1;
+                    buckets.put(bucket.id, bucket);
+                } catch (RuntimeException e) {
+                    LOGGER.log(Level.WARNING, "Skipping unreadable crash bucket line " + line);
+                }
+            }
+        }
+        LOGGER.log(Level.INFO, buckets.size() + " crash buckets loaded from " + directory.getPath());
+    }
+
+    static Throwable getRootCause(Throwable throwable) {
+        Throwable rootCause = throwable;
+        while (rootCause.getCause() != null && rootCause.getCause() != rootCause) {
+            rootCause = rootCause.getCause();
+        }
+        return rootCause;
+    }
+
+    /**
+     * @return the root cause's type followed by its top {@code frames} frames, normalized
+     */
+    static String getSignature(Throwable rootCause, int frames) {
+        StringBuilder stringBuilder = new StringBuilder(rootCause.getClass().getName());
+        int added = 0;
+        for (StackTraceElement element : rootCause.getStackTrace()) {
+            if (added >= frames) {
+                break;
+            }
+            String className = element.getClassName();
+            if (className.startsWith(SESSION_CLASS)) {
+                // below the target, where the fuzzer called it
+                break;
+            }
+            if (className.startsWith("java.lang.reflect.") || className.startsWith("jdk.internal.reflect.") ||
+                    className.startsWith("sun.reflect.")) {
+                continue;
+            }
+            stringBuilder.append('\n')
+                    .append(GENERATED_SUFFIX.matcher(className).replaceAll(""))
+                    .append('.')
+                    .append(GENERATED_SUFFIX.matcher(element.getMethodName()).replaceAll(""));
+            added++;
+        }
+        return stringBuilder.toString();
+    }
+
+    private static String hash(String signature) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(signature.getBytes(StandardCharsets.UTF_8));
+            StringBuilder stringBuilder = new StringBuilder();
+            for (int i = 0; i < 8; i++) {
+                stringBuilder.append(String.format("%02x", digest[i]));
+            }
+            return stringBuilder.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public static class Bucket {
+        private final String id;
+        private final String exception;
+        private final long firstSeen;
+        private long lastSeen;
+        private long count;
+        private long inputSize = -1;
+
+        Bucket(String id, String exception, long firstSeen) {
+            this.id = id;
+            this.exception = exception;
+            this.firstSeen = firstSeen;
+            this.lastSeen = firstSeen;
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public String getException() {
+            return exception;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getFirstSeen() {
+            return firstSeen;
+        }
+
+        public long getLastSeen() {
+            return lastSeen;
+        }
+
+        public long getInputSize() {
+            return inputSize;
+        }
+    }
+}
@@ -0,0 +1,158 @@
+package afl;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Keeps a worker's execution thread from wedging every later run.
+ * <p>
+ * A time-out cancels the run with an interrupt, but a target spinning in a loop never looks at it and
+ * would keep the single execution thread busy, queuing every later run behind it. After a time-out
+ * {@link #check()} gives the thread a moment to stop, and if it is still running logs its stack,
+ * abandons it and swaps in a fresh executor so the next request starts right away. Abandoned threads
+ * that never stop pile up, past {@code maxZombies} of them the process exits with {@link #EXIT_RECYCLE}
+ * so it can be restarted.
+ * <p>
+ * With {@code threadPerExecution} every run starts on a new thread, virtual where the JVM has them (see
+ * {@link method.VirtualThreads}), so a stuck thread is only counted and left behind, the executor is kept.
+ *
+ * @author Derrick Lockwood
+ * @created 2026-10-17.
+ */
+public class ExecutionWatchdog {
+
+    /**
+     * Exit status when too many threads are stuck, EX_TEMPFAIL from sysexits.h.
+     */
+    public static final int EXIT_RECYCLE = 75;
+    private static final long GRACE_PERIOD = 100;
+    private static final Logger LOGGER = Logger.getLogger(ExecutionWatchdog.class.getName());
+
+    static {
+        LOGGER.setParent(Logger.getLogger(Kelinci.class.getName()));
+    }
+
+    private final ThreadFactory threadFactory;
+    private final int maxZombies;
+    private final boolean threadPerExecution;
+    private final List<Thread> zombies = new ArrayList<>();
+    private WatchedExecutor executor;
+
+    /**
+     * @param threadPerExecution start a new thread for every run instead of keeping one
+     */
+    public ExecutionWatchdog(ThreadFactory threadFactory, int maxZombies, boolean threadPerExecution) {
+        this.threadFactory = threadFactory;
+        this.maxZombies = maxZombies;
+        this.threadPerExecution = threadPerExecution;
+        executor = new WatchedExecutor(threadFactory, threadPerExecution);
+    }
+
+    /**
+     * @return the executor to run on, a different one after {@link #check()} abandoned a thread
+     */
+    public ExecutorService getExecutorService() {
+        return executor;
+    }
+
+    /**
+     * @return the number of abandoned threads that are still running
+     */
+    public int getZombieCount() {
+        zombies.removeIf(thread -> !thread.isAlive());
+        return zombies.size();
+    }
+
+    /**
+     * To be called after a run timed out. Waits briefly for the execution thread to honour the
+     * interrupt and abandons it if it doesn't.
+     *
+     * @return true if the thread was abandoned, the executor is then replaced unless it starts a thread per
+     * run
+     */
+    public boolean check() {
+        Thread thread;
+        try {
+            thread = executor.awaitIdle(GRACE_PERIOD);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        if (thread == null) {
+            return false;
+        }
+        if (LOGGER.isLoggable(Level.WARNING)) {
+            StringBuilder stringBuilder = new StringBuilder("Thread " + thread.getName() +
+                    " still running after time-out, abandoning it at:");
+            for (StackTraceElement element : thread.getStackTrace()) {
+                stringBuilder.append("\n\tat ").append(element);
+            }
+            LOGGER.log(Level.WARNING, stringBuilder.toString());
+        }
+        if (!threadPerExecution) {
+            // the stuck thread is the executor's only one
+            executor.shutdownNow();
+            executor = new WatchedExecutor(threadFactory, false);
+        }
+        zombies.add(thread);
+        int zombieCount = getZombieCount();
+        if (zombieCount > maxZombies) {
+            LOGGER.log(Level.SEVERE, zombieCount + " threads stuck in the target, exiting to recycle the process");
+            System.exit(EXIT_RECYCLE);
+        }
+        return true;
+    }
+
+    public void shutdownNow() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Executor for one run at a time that knows which thread is running it. It keeps a single thread, or
+     * with {@code threadPerTask} lets every thread end with its task so the next one starts a new thread.
+     */
+    private static class WatchedExecutor extends ThreadPoolExecutor {
+
+        private Thread running;
+
+        WatchedExecutor(ThreadFactory threadFactory, boolean threadPerTask) {
+            super(threadPerTask ? 0 : 1, threadPerTask ? Integer.MAX_VALUE : 1, 0L, TimeUnit.MILLISECONDS,
+                    threadPerTask ? new SynchronousQueue<>() : new LinkedBlockingQueue<>(), threadFactory);
+        }
+
+        @Override
+        protected synchronized void beforeExecute(Thread t, Runnable r) {
+            running = t;
+        }
+
+        @Override
+        protected synchronized void afterExecute(Runnable r, Throwable t) {
+            // a thread left behind that finishes late isn't the one running any more
+            if (running == Thread.currentThread()) {
+                running = null;
+            }
+            notifyAll();
+        }
+
+        /**
+         * @return the thread still running a task after {@code timeout} or null if none is
+         */
+        synchronized Thread awaitIdle(long timeout) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + timeout;
+            long remaining = timeout;
+            while (running != null && remaining > 0) {
+                wait(remaining);
+                remaining = deadline - System.currentTimeMillis();
+            }
+            return running;
+        }
+    }
+}
@@ -1,10 +1,21 @@
 package afl;
 
+import instrumentor.CoverageView;
+import io.ByteBufferInputStream;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -17,99 +28,436 @@ import static afl.Kelinci.STATUS_COMM_ERROR;
 public class FuzzRequest {
     public static final byte DEFAULT_MODE = 0;
     public static final byte LOCAL_MODE = 1;
+    /**
+     * The input is already in the {@link SharedMemory} mapping, the request is just the mode byte.
+     */
+    public static final byte SHARED_MEMORY_MODE = 2;
+    /**
+     * Several inputs sent in one frame, each one is answered as soon as it finished.
+     */
+    public static final byte BATCH_MODE = 3;
+    /**
+     * Set on the mode byte when the interface keeps the connection open for further requests.
+     */
+    public static final byte PERSISTENT_FLAG = 0x10;
+    /**
+     * Set on the mode byte when the interface accepts coverage encoded by {@link CoverageEncoder}.
+     */
+    public static final byte ENCODED_COVERAGE_FLAG = 0x20;
+    private static final byte MODE_MASK = 0x0F;
+    /**
+     * Largest input AFL writes (MAX_FILE in afl's config.h), the pooled input buffers grow up to this size.
+     */
+    public static final int MAX_INPUT = 1 << 20;
+    /**
+     * Size of a new pooled input buffer, it is only grown once a request doesn't fit.
+     */
+    private static final int INITIAL_INPUT = 1 << 12;
+    /**
+     * Time allowed for the rest of a request to arrive once its first byte did, and for its response to be
+     * sent.
+     */
+    private static final int REQUEST_TIMEOUT = 5000;
+    private static final int POOL_SIZE = 16;
+    private static final int MAX_BATCH = 4096;
     private static final Logger LOGGER = Logger.getLogger(FuzzRequest.class.getName());
 
     static {
         LOGGER.setParent(Logger.getLogger(Kelinci.class.getName()));
     }
 
-    public final Socket clientSocket;
-    public final String fileRequest;
+    private enum Stage {
+        HEADER, COUNT, LENGTH, PAYLOAD
+    }
+
+    private static final ThreadLocal<CoverageEncoder> coverageEncoder = ThreadLocal.withInitial(CoverageEncoder::new);
+    // the input of every execution on a worker is read through the same stream
+    private static final ThreadLocal<ByteBufferInputStream> inputStream =
+            ThreadLocal.withInitial(() -> new ByteBufferInputStream(ByteBuffer.allocate(0)));
+    // array backed so that returning a buffer doesn't allocate a queue node
+    private static final BlockingQueue<ByteBuffer> bufferPool = new ArrayBlockingQueue<>(POOL_SIZE);
+
+    public final Connection connection;
     private final File tmpfile;
+    private final SharedMemory sharedMemory;
+    private final long deadline;
+    private String fileRequest;
+    // what the pooled buffer is being filled with, from offset up to its limit
+    private Stage stage = Stage.HEADER;
+    private int offset;
+    private int batchIndex;
+    private ByteBuffer inputBuffer;
+    // where the selected input starts in inputBuffer, the stream reading it moves the position on
+    private int inputStart;
+    private ByteBuffer pooledBuffer;
+    private int[] batchBounds;
+    private byte mode;
     private int result;
+    private boolean persistent;
+    private boolean encodedCoverage;
+    private boolean endOfStream;
 
-    public FuzzRequest(File tmpFile, Socket clientSocket) throws IOException {
-        this.clientSocket = clientSocket;
-        fileRequest = getFileRequestFromServer(clientSocket);
+    /**
+     * Starts a request whose first bytes are waiting on {@code connection}, it is read with
+     * {@link #readAvailable()}.
+     */
+    public FuzzRequest(File tmpFile, SharedMemory sharedMemory, Connection connection) {
+        this.connection = connection;
         this.tmpfile = tmpFile;
+        this.sharedMemory = sharedMemory;
+        deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(REQUEST_TIMEOUT);
+        pooledBuffer = acquireBuffer();
+        // the header byte comes first
+        expect(0, 1);
+    }
+
+    /**
+     * @return the path of the input, null if the request carries none
+     */
+    public String getFileRequest() {
+        return fileRequest;
+    }
+
+    /**
+     * @return the {@link System#nanoTime()} by which the whole request has to have arrived
+     */
+    public long getDeadline() {
+        return deadline;
     }
 
     public int getResult() {
         return result;
     }
 
-    private String getFileRequestFromServer(Socket request) throws IOException {
+    /**
+     * @return true if the connection should be kept open after the response is sent
+     */
+    public boolean isPersistent() {
+        return persistent;
+    }
+
+    /**
+     * @return true if the interface closed the connection instead of sending a request
+     */
+    public boolean isEndOfStream() {
+        return endOfStream;
+    }
+
+    /**
+     * @return the number of inputs to answer, more than one only in BATCH_MODE
+     */
+    public int getInputCount() {
+        if (batchBounds == null || result == STATUS_COMM_ERROR) {
+            return 1;
+        }
+        return batchBounds.length - 1;
+    }
 
-        InputStream is = request.getInputStream();
+    /**
+     * Makes the input at {@code index} of a batch the one returned by {@link #getInputStream()} and
+     * {@link #persistInput(File)}. Requests with a single input ignore this.
+     */
+    public void selectInput(int index) {
+        if (batchBounds == null) {
+            return;
+        }
+        pooledBuffer.clear();
+        pooledBuffer.limit(batchBounds[index + 1]).position(batchBounds[index]);
+        inputBuffer = pooledBuffer;
+        inputStart = batchBounds[index];
+    }
 
-        // read the mode (local or default)
-        byte mode = (byte) is.read();
+    /**
+     * Opens the input of this request for the byte readers. Inputs sent over the socket or through
+     * shared memory are read from memory, only LOCAL_MODE inputs are read from disk. The stream for an
+     * in-memory input is the calling thread's, it is pointed at this input instead of being opened anew.
+     */
+    public InputStream getInputStream() throws IOException {
+        if (inputBuffer != null) {
+            inputBuffer.position(inputStart);
+            ByteBufferInputStream stream = inputStream.get();
+            stream.setBuffer(inputBuffer);
+            return stream;
+        }
+        return new BufferedInputStream(new FileInputStream(fileRequest));
+    }
 
-        /* LOCAL MODE */
-        if (mode == LOCAL_MODE) {
-            LOGGER.log(Level.INFO, "Handling request in LOCAL MODE.");
-
-            // read the length of the path (integer)
-            int pathlen = is.read() | is.read() << 8 | is.read() << 16 | is.read() << 24;
-            LOGGER.log(Level.FINE, "Path len = " + pathlen);
-
-            if (pathlen < 0) {
-                LOGGER.log(Level.SEVERE, "Failed to read path length");
-                result = STATUS_COMM_ERROR;
-            } else {
-
-                // read the path
-                byte input[] = new byte[pathlen];
-                int read = 0;
-                while (read < pathlen) {
-                    if (is.available() > 0) {
-                        input[read++] = (byte) is.read();
+    /**
+     * Writes an in-memory input to {@code file} so it survives the request, e.g. after a crash or a
+     * time-out. LOCAL_MODE inputs already live on disk and are left where they are.
+     *
+     * @return the file holding the input of this request
+     */
+    public File persistInput(File file) throws IOException {
+        if (inputBuffer == null) {
+            return new File(fileRequest);
+        }
+        ByteBuffer input = inputBuffer.duplicate();
+        input.position(inputStart);
+        try (FileOutputStream stream = new FileOutputStream(file)) {
+            stream.getChannel().write(input);
+        }
+        return file;
+    }
+
+    /**
+     * @return the size in bytes of the selected input
+     */
+    public long getInputSize() {
+        if (inputBuffer == null) {
+            return new File(fileRequest).length();
+        }
+        return inputBuffer.limit() - inputStart;
+    }
+
+    /**
+     * Writes a copy of the selected input to {@code file}, unlike {@link #persistInput(File)} also when it
+     * is a local file.
+     */
+    public void writeInput(File file) throws IOException {
+        if (inputBuffer == null) {
+            Files.copy(new File(fileRequest).toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            return;
+        }
+        persistInput(file);
+    }
+
+    /**
+     * Sends the status and coverage back the way the request came in. In shared memory mode the
+     * coverage is written into the mapping and only the status goes over the socket. Otherwise the
+     * coverage is encoded if the interface asked for it, or sent as the full map.
+     */
+    public void respond(int result, CoverageView coverage) throws IOException {
+        byte[] mem = coverage.getMap();
+        // the run may have outlasted the request's deadline, give the response its own
+        connection.setTimeout(REQUEST_TIMEOUT);
+        if (mode == SHARED_MEMORY_MODE) {
+            if (result != STATUS_COMM_ERROR) {
+                sharedMemory.writeCoverage(mem, coverage.getHits(), coverage.getHitCount());
+            }
+            connection.write(result);
+        } else if (encodedCoverage) {
+            CoverageEncoder encoder = coverageEncoder.get();
+            encoder.encode(result, mem, coverage.getHits(), coverage.getHitCount());
+            connection.write(encoder.getResponse());
+        } else {
+            connection.write(result);
+            connection.write(coverage.getMapBuffer());
+        }
+    }
+
+    private static ByteBuffer acquireBuffer() {
+        ByteBuffer buffer = bufferPool.poll();
+        if (buffer == null) {
+            buffer = ByteBuffer.allocate(INITIAL_INPUT);
+        }
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * Returns the pooled input buffer of this request, must be called once the input is no longer read.
+     */
+    public void release() {
+        if (pooledBuffer != null) {
+            bufferPool.offer(pooledBuffer);
+            pooledBuffer = null;
+            inputBuffer = null;
+        }
+    }
+
+    /**
+     * Reads as much of the request as has arrived, without waiting for the rest. The server calls this
+     * each time the connection turns readable, so an interface that sends its request slowly never holds
+     * up the others.
+     *
+     * @return true once the request is complete, turned out to be malformed ({@link #getResult()} is
+     * STATUS_COMM_ERROR) or the interface closed the connection instead of sending one
+     * ({@link #isEndOfStream()}), false while more of it has to arrive
+     * @throws EOFException if the connection is closed in the middle of the request
+     */
+    public boolean readAvailable() throws IOException {
+        while (true) {
+            if (!pooledBuffer.hasRemaining()) {
+                if (advance()) {
+                    return true;
+                }
+                continue;
+            }
+            int n = connection.readNow(pooledBuffer);
+            if (n == 0) {
+                return false;
+            }
+            if (n < 0) {
+                if (stage == Stage.HEADER) {
+                    endOfStream = true;
+                    release();
+                    return true;
+                }
+                throw new EOFException("Connection closed in the middle of a request");
+            }
+        }
+    }
+
+    /**
+     * Handles the part of the request that was just read in full and sets the pooled buffer up for the
+     * next one.
+     *
+     * @return true if the request is complete
+     */
+    private boolean advance() {
+        ByteBuffer buffer = pooledBuffer;
+        switch (stage) {
+            case HEADER:
+                return readHeader(buffer.get(0));
+            case COUNT: {
+                int count = getLength(buffer, 0);
+                if (LOGGER.isLoggable(Level.FINE)) {
+                    LOGGER.log(Level.FINE, "Batch size = " + count);
+                }
+                if (count < 1 || count > MAX_BATCH) {
+                    LOGGER.log(Level.SEVERE, "Invalid batch size " + count);
+                    return fail();
+                }
+                batchBounds = new int[count + 1];
+                return expectLength(0);
+            }
+            case LENGTH: {
+                int size = getLength(buffer, offset);
+                if (LOGGER.isLoggable(Level.FINE) && mode != BATCH_MODE) {
+                    LOGGER.log(Level.FINE, (mode == LOCAL_MODE ? "Path len = " : "File size = ") + size);
+                }
+                if (size < 0 || size > MAX_INPUT - offset) {
+                    if (mode == LOCAL_MODE) {
+                        LOGGER.log(Level.SEVERE, "Invalid path length " + size);
+                    } else if (mode == BATCH_MODE) {
+                        LOGGER.log(Level.SEVERE, "Invalid size " + size + " of input " + batchIndex + " in batch");
                     } else {
-                        LOGGER.log(Level.SEVERE, "No input available from stream, strangely, breaking.");
-                        result = STATUS_COMM_ERROR;
-                        break;
+                        LOGGER.log(Level.SEVERE, "Invalid file size " + size);
                     }
+                    return fail();
                 }
-                String path = new String(input);
-                LOGGER.log(Level.INFO, "Received path: " + path);
+                stage = Stage.PAYLOAD;
+                expect(offset, size);
+                return false;
+            }
+            default:
+                return readPayload(buffer);
+        }
+    }
+
+    private boolean readHeader(int header) {
+        persistent = (header & PERSISTENT_FLAG) != 0;
+        encodedCoverage = (header & ENCODED_COVERAGE_FLAG) != 0;
+        mode = (byte) (header & MODE_MASK);
 
-                return path;
+        /* SHARED MEMORY MODE */
+        if (mode == SHARED_MEMORY_MODE) {
+            release();
+            if (sharedMemory == null) {
+                LOGGER.log(Level.SEVERE, "Request in SHARED MEMORY MODE but no shared memory file configured");
+                return fail();
             }
+            inputBuffer = sharedMemory.getInput();
+            if (inputBuffer == null) {
+                LOGGER.log(Level.SEVERE, "Invalid input length in shared memory");
+                return fail();
+            }
+            if (LOGGER.isLoggable(Level.FINE)) {
+                LOGGER.log(Level.FINE, "Input size = " + inputBuffer.remaining());
+            }
+            fileRequest = sharedMemory.getFile().getPath();
+            return true;
+        }
 
-            /* DEFAULT MODE */
+        if (mode == LOCAL_MODE) {
+            // only the path to the input is sent
+            LOGGER.log(Level.FINE, "Handling request in LOCAL MODE.");
+        } else if (mode == BATCH_MODE) {
+            // a count followed by the length prefixed inputs
+            LOGGER.log(Level.FINE, "Handling request in BATCH MODE.");
+            stage = Stage.COUNT;
+            expect(0, 4);
+            return false;
         } else {
-            LOGGER.log(Level.INFO, "Handling request in DEFAULT MODE.");
-
-            // read the size of the input file (integer)
-            int filesize = is.read() | is.read() << 8 | is.read() << 16 | is.read() << 24;
-            LOGGER.log(Level.FINE, "File size = " + filesize);
-
-            if (filesize < 0) {
-                LOGGER.log(Level.SEVERE, "Failed to read file size");
-                result = STATUS_COMM_ERROR;
-            } else {
-
-                // read the input file
-                byte input[] = new byte[filesize];
-                int read = 0;
-                while (read < filesize) {
-                    if (is.available() > 0) {
-                        input[read++] = (byte) is.read();
-                    } else {
-                        LOGGER.log(Level.WARNING, "No input available from stream, strangely");
-                        LOGGER.log(Level.WARNING, "Appending a 0");
-                        input[read++] = 0;
-                    }
-                }
-                try (FileOutputStream stream = new FileOutputStream(tmpfile)) {
-                    stream.write(input);
-                    stream.close();
-                    return tmpfile.getAbsolutePath();
-                } catch (IOException ioe) {
-                    throw new RuntimeException("Error writing to tmp file");
-                }
+            LOGGER.log(Level.FINE, "Handling request in DEFAULT MODE.");
+        }
+        return expectLength(0);
+    }
+
+    private boolean readPayload(ByteBuffer buffer) {
+        /* LOCAL MODE */
+        if (mode == LOCAL_MODE) {
+            fileRequest = new String(buffer.array(), 0, buffer.position());
+            if (LOGGER.isLoggable(Level.FINE)) {
+                LOGGER.log(Level.FINE, "Received path: " + fileRequest);
             }
+            release();
+            return true;
         }
-        return null;
+
+        /* BATCH MODE */
+        if (mode == BATCH_MODE) {
+            // the inputs are read back to back, each one over the length that prefixed it
+            offset = buffer.position();
+            batchBounds[++batchIndex] = offset;
+            if (batchIndex < batchBounds.length - 1) {
+                return expectLength(offset);
+            }
+            fileRequest = tmpfile.getPath();
+            selectInput(0);
+            return true;
+        }
+
+        /* DEFAULT MODE */
+        buffer.flip();
+        // keep the input in memory, it is only written to the tmp file if it has to be persisted
+        inputBuffer = buffer;
+        fileRequest = tmpfile.getPath();
+        return true;
+    }
+
+    /**
+     * Reads the little endian length that prefixes every payload next, at {@code off} of the pooled buffer
+     * where the payload will go.
+     */
+    private boolean expectLength(int off) {
+        if (MAX_INPUT - off < 4) {
+            LOGGER.log(Level.SEVERE, "Batch larger than " + MAX_INPUT + " bytes");
+            return fail();
+        }
+        stage = Stage.LENGTH;
+        expect(off, 4);
+        return false;
+    }
+
+    private void expect(int off, int len) {
+        if (off + len > pooledBuffer.capacity()) {
+            grow(off, off + len);
+        }
+        pooledBuffer.limit(off + len).position(off);
+        offset = off;
+    }
+
+    /**
+     * Replaces the pooled buffer with one of at least {@code size} bytes, keeping the {@code kept} bytes read
+     * before. The larger buffer goes back to the pool, so the pool settles on the size of the inputs AFL sends.
+     */
+    private void grow(int kept, int size) {
+        int capacity = (int) Math.min(MAX_INPUT, Math.max(size, 2L * pooledBuffer.capacity()));
+        ByteBuffer grown = ByteBuffer.allocate(capacity);
+        System.arraycopy(pooledBuffer.array(), 0, grown.array(), 0, kept);
+        pooledBuffer = grown;
+    }
+
+    private boolean fail() {
+        result = STATUS_COMM_ERROR;
+        release();
+        return true;
+    }
+
+    private static int getLength(ByteBuffer buffer, int off) {
+        byte[] b = buffer.array();
+        return (b[off] & 0xFF) | (b[off + 1] & 0xFF) << 8 | (b[off + 2] & 0xFF) << 16 | (b[off + 3] & 0xFF) << 24;
     }
 }
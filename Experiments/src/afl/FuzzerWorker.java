@@ -0,0 +1,370 @@
+package afl;
+
+import instrumentor.CoverageView;
+import io.AFLConfig;
+import method.MethodCall;
+import method.MethodCallParser;
+import method.MethodCallSession;
+import method.MethodData;
+import method.VirtualThreads;
+import method.callbacks.CSVMethodCallback;
+import method.callbacks.EmptyMethodCallback;
+import method.callbacks.LogMethodCallback;
+import method.callbacks.MethodCallback;
+import mock.TransformClassLoader;
+import mock.answers.readers.inputstream.ByteReaderInputStreamList;
+import org.json.simple.JSONObject;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static afl.Kelinci.STATUS_COMM_ERROR;
+import static afl.Kelinci.STATUS_CRASH;
+import static afl.Kelinci.STATUS_SUCCESS;
+import static afl.Kelinci.STATUS_TIMEOUT;
+
+/**
+ * Executes fuzz requests against its own copy of the method call.
+ * <p>
+ * Every worker has its own {@link TransformClassLoader}, so the instrumented classes, the answers
+ * baked into them by the transformation, the byte readers and the coverage map ({@code AFLPathMem})
+ * all belong to the worker. Several workers can then take requests from one {@link AFLServer}
+ * concurrently, each serving one AFL instance at a time, while sharing one heap and the fuzzer's own
+ * classes.
+ *
+ * @author Derrick Lockwood
+ * @created 2026-10-17.
+ */
+public class FuzzerWorker {
+
+    private static final Logger LOGGER = Logger.getLogger(FuzzerWorker.class.getName());
+    private static final long POLL_TIMEOUT = 500;
+
+    static {
+        LOGGER.setParent(Logger.getLogger(Kelinci.class.getName()));
+    }
+
+    private final int id;
+    private final AFLConfig config;
+    private final ByteReaderInputStreamList byteReaderList;
+    private final MethodCallSession methodCallSession;
+    private final CoverageView coverage;
+    private final File tmpfile;
+    private volatile boolean isRunning = true;
+    private CrashStore crashStore;
+
+    private FuzzerWorker(int id, AFLConfig config, ByteReaderInputStreamList byteReaderList,
+            MethodCallSession methodCallSession, CoverageView coverage) {
+        this.id = id;
+        this.config = config;
+        this.byteReaderList = byteReaderList;
+        this.methodCallSession = methodCallSession;
+        this.coverage = coverage;
+        try {
+            tmpfile = File.createTempFile("kelinci-input-" + id + "-", "");
+            tmpfile.deleteOnExit();
+        } catch (IOException ioe) {
+            throw new RuntimeException("Error creating tmp file");
+        }
+    }
+
+    /**
+     * Loads the instrumented classes into a fresh class loader and sets up the method call described
+     * by {@code definition} against them.
+     *
+     * @return the worker or null if the definition couldn't be parsed
+     */
+    public static FuzzerWorker create(int id, AFLConfig config, Logger logger, File instrumentedDir,
+            JSONObject definition) throws Exception {
+        TransformClassLoader transformClassLoader = new TransformClassLoader(instrumentedDir.getPath());
+        transformClassLoader.setAbortChecks(config.abortChecks);
+        transformClassLoader.setResetStatics(config.resetStatics);
+        transformClassLoader.setThreadLocalCoverage(config.threadLocalCoverage);
+        ByteReaderInputStreamList byteReaderList = new ByteReaderInputStreamList(logger);
+        MethodCall methodCall = MethodCallParser.setupMethodCall(logger, transformClassLoader, definition,
+                byteReaderList);
+        if (methodCall == null) {
+            return null;
+        }
+        MethodCallSession methodCallSession = methodCall.createSession(EmptyMethodCallback.create());
+        MethodCallback methodCallback = LogMethodCallback.create(logger, true, Level.FINE).link(byteReaderList);
+        if (config.logToCSV != null) {
+            // workers can't share a CSV file, every worker after the first writes next to it
+            File csvFile = id == 0 ? config.logToCSV : new File(config.logToCSV.getPath() + "." + id);
+            try {
+                methodCallback = methodCallback.link(CSVMethodCallback.create(csvFile));
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, e, () -> "Couldn't link CSVMethodCallback continuing without it");
+            }
+        }
+        methodCallSession.linkMethodCallback(methodCallback);
+        return new FuzzerWorker(id, config, byteReaderList, methodCallSession, transformClassLoader.getCoverageView());
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public void stop() {
+        isRunning = false;
+    }
+
+    /**
+     * Handles requests from the server one at a time until stopped.
+     * <p>
+     * LOCAL_MODE means you only send over a path to the input file.
+     * DEFAULT_MODE means the actual bytes of the file are sent, they are kept in memory and only
+     * written to the tmp file on a crash or time-out.
+     * SHARED_MEMORY_MODE means the bytes are already in the shared memory mapping.
+     * BATCH_MODE means several inputs are sent in one frame, every input gets its own response.
+     */
+    public void serve(AFLServer aflServer) {
+        LOGGER.log(Level.INFO, "Fuzzer worker " + id + " started.");
+        ExecutionWatchdog watchdog = createWatchdog();
+
+        while (isRunning) {
+            FuzzRequest request = null;
+            try {
+                // block until a request is handed off, waking up periodically to check for shutdown
+                request = aflServer.poll(POLL_TIMEOUT, TimeUnit.MILLISECONDS);
+                if (request != null) {
+                    long start = System.nanoTime();
+                    int result = request.getResult();
+                    if (request.getFileRequest() != null || result == STATUS_COMM_ERROR) {
+                        // a batch is answered input by input, so the interface can read results as they finish
+                        for (int i = 0; i < request.getInputCount(); i++) {
+                            result = execute(watchdog, aflServer.getStats(), request, i);
+                        }
+                        request.release();
+
+                        if (request.isPersistent() && result != STATUS_COMM_ERROR) {
+                            // wait for the next request on the same connection
+                            aflServer.rearm(request.connection);
+                            LOGGER.log(Level.FINE, "Connection kept open.");
+                        } else {
+                            // close connection
+                            request.connection.shutdown();
+                            LOGGER.log(Level.FINE, "Connection closed.");
+                        }
+                    }
+                    // sizes the server's queue to how fast requests are served
+                    aflServer.completed(System.nanoTime() - start);
+                }
+            } catch (IOException ioe) {
+                // Connection was reset, broken or stalled, most probably means AFL process was killed.
+                // Over NIO channels a reset or broken pipe is a plain IOException, not a SocketException.
+                LOGGER.log(Level.WARNING, "Connection reset: " + ioe.getMessage());
+                aflServer.getStats().recordCommError();
+                request.release();
+                try {
+                    request.connection.close();
+                } catch (IOException ignored) {
+                }
+            } catch (Exception e) {
+                watchdog.shutdownNow();
+                e.printStackTrace();
+                throw new RuntimeException("Exception running fuzzed input");
+            }
+        }
+        watchdog.shutdownNow();
+    }
+
+    private int execute(ExecutionWatchdog watchdog, KelinciStats stats, FuzzRequest request, int index) throws
+            IOException {
+        int result = request.getResult();
+        coverage.clear();
+        //Set up callbacks to read from the request input
+        if (LOGGER.isLoggable(Level.FINE)) {
+            LOGGER.log(Level.FINE, "Starting fuzz request on worker " + id);
+        }
+        if (result != STATUS_COMM_ERROR) {
+            request.selectInput(index);
+            long start = System.nanoTime();
+            MethodData methodData = runMethod(watchdog.getExecutorService(), request.getInputStream());
+            result = getStatus(methodData);
+            stats.recordExecution(result, System.nanoTime() - start);
+            if (result == STATUS_TIMEOUT) {
+                // a target ignoring the interrupt would hold up every later request
+                watchdog.check();
+            }
+            if (result == STATUS_CRASH && crashStore != null) {
+                // only a new bucket or a smaller input for one is written and logged
+                crashStore.record(methodData.getReturnException(), request.getInputSize(), request::writeInput);
+            } else if (result == STATUS_CRASH || result == STATUS_TIMEOUT) {
+                if (result == STATUS_CRASH) {
+                    logCrash(methodData.getReturnException());
+                }
+                LOGGER.log(Level.INFO, "Input saved to " + request.persistInput(tmpfile).getPath());
+            }
+        } else {
+            stats.recordCommError();
+        }
+        if (LOGGER.isLoggable(Level.FINE)) {
+            LOGGER.log(Level.FINE, "Result: " + result);
+            LOGGER.log(Level.FINE, printCoverage());
+        }
+        // send back status and "shared memory"
+        request.respond(result, coverage);
+        return result;
+    }
+
+    public int runMethodCall(ExecutorService service, File file) throws IOException {
+        return runMethodCall(service, new BufferedInputStream(new FileInputStream(file)));
+    }
+
+    public int runMethodCall(ExecutorService service, InputStream inputStream) throws IOException {
+        MethodData methodData = runMethod(service, inputStream);
+        int status = getStatus(methodData);
+        if (status == STATUS_CRASH) {
+            logCrash(methodData.getReturnException());
+        }
+        return status;
+    }
+
+    /**
+     * Runs the input in {@code file} for a replay, the coverage it reached is left in {@link #getCoverage()}.
+     */
+    public MethodData replay(ExecutorService service, File file) throws IOException {
+        coverage.clear();
+        try (InputStream inputStream = new BufferedInputStream(new FileInputStream(file))) {
+            return runMethod(service, inputStream);
+        }
+    }
+
+    /**
+     * Runs {@code input} for the {@link StandaloneFuzzer}, the coverage it reached is left in {@link #getCoverage()}.
+     */
+    public MethodData run(ExecutorService service, byte[] input) throws IOException {
+        coverage.clear();
+        return runMethod(service, new ByteArrayInputStream(input));
+    }
+
+    private MethodData runMethod(ExecutorService service, InputStream inputStream) throws IOException {
+        // run app with input loads byte readers with input
+        byteReaderList.setInputStream(inputStream);
+        if (LOGGER.isLoggable(Level.FINEST)) {
+            LOGGER.log(Level.FINEST, byteReaderList.toString());
+        }
+        if (LOGGER.isLoggable(Level.FINE)) {
+            LOGGER.log(Level.FINE, "Starting " + methodCallSession);
+        }
+        MethodData methodData = methodCallSession.runMethod(service, config.timeout);
+        if (config.threadLocalCoverage) {
+            // threads the target started and left running keep writing, what they add after this counts
+            // for the next execution
+            coverage.merge();
+        }
+        coverage.collect();
+        return methodData;
+    }
+
+    /**
+     * @return the status sent back to the interface for a run
+     */
+    static int getStatus(MethodData methodData) {
+        Throwable e = methodData.getReturnException();
+        if (e != null) {
+            if (e instanceof TimeoutException) {
+                LOGGER.log(Level.WARNING, "Time-out!");
+                return STATUS_TIMEOUT;
+            }
+            return STATUS_CRASH;
+        }
+        LOGGER.log(Level.FINE, "Finished!");
+        return STATUS_SUCCESS;
+    }
+
+    static void logCrash(Throwable e) {
+        Throwable throwable = e;
+        if (e.getCause() != null) {
+            throwable = e.getCause();
+        }
+        if (throwable instanceof RuntimeException) {
+            LOGGER.log(Level.WARNING, "RuntimeException thrown!", throwable);
+        } else {
+            LOGGER.log(Level.WARNING, "Uncaught throwable!", e);
+        }
+    }
+
+    /**
+     * Crashes are bucketed into {@code crashStore} instead of being logged and saved one by one, the store
+     * is shared by all workers of an engine.
+     */
+    public void setCrashStore(CrashStore crashStore) {
+        this.crashStore = crashStore;
+    }
+
+    /**
+     * @return the worker's coverage map, filled in by the last run
+     */
+    public byte[] getCoverage() {
+        return coverage.getMap();
+    }
+
+    /**
+     * @return the worker's coverage map with the cells hit by the last run
+     */
+    public CoverageView getCoverageView() {
+        return coverage;
+    }
+
+    /**
+     * Every run ends with a GC to measure the heap unless turned off, see
+     * {@link MethodCallSession#setMeasureHeap(boolean)}.
+     */
+    public void setMeasureHeap(boolean measureHeap) {
+        methodCallSession.setMeasureHeap(measureHeap);
+    }
+
+    private String printCoverage() {
+        StringBuilder stringBuilder = new StringBuilder();
+        byte[] map = coverage.getMap();
+        int[] hits = coverage.getHits();
+        int count = coverage.getHitCount() < 0 ? map.length : coverage.getHitCount();
+        for (int j = 0; j < count; j++) {
+            int i = coverage.getHitCount() < 0 ? j : hits[j];
+            if (map[i] != 0) {
+                stringBuilder.append(i).append(" -> ").append(map[i]).append('\n');
+            }
+        }
+        return stringBuilder.toString();
+    }
+
+    public ExecutorService createExecutorService() {
+        return Executors.newSingleThreadExecutor(createThreadFactory());
+    }
+
+    /**
+     * @return a watchdog over a fresh execution thread of this worker
+     */
+    public ExecutionWatchdog createWatchdog() {
+        return new ExecutionWatchdog(createThreadFactory(), config.maxZombieThreads, config.threadPerExecution);
+    }
+
+    private ThreadFactory createThreadFactory() {
+        //Creates the deamon thread such that the JVM can close instead of have to wait for the JVM to close
+        return new ThreadFactory() {
+            private ThreadFactory threadFactory = config.threadPerExecution ?
+                    VirtualThreads.getThreadFactory(Executors.defaultThreadFactory()) : Executors.defaultThreadFactory();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = threadFactory.newThread(r);
+                thread.setName("kelinci-worker-" + id + "-" + thread.getName());
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+}
@@ -0,0 +1,292 @@
+package afl;
+
+import instrumentor.CoverageMap;
+import io.AFLConfig;
+import org.json.simple.JSONObject;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Fuzzes one target method: owns its config, the {@link AFLServer} (and so the request queue) the
+ * interface talks to and the {@link FuzzerWorker}s, each with its own {@link mock.TransformClassLoader},
+ * session and coverage map.
+ * <p>
+ * Nothing is shared between engines except the fuzzer's own classes, so several engines can run side
+ * by side in one JVM, sharing the JIT and the heap, for different methods or for different jars whose
+ * library versions would otherwise conflict.
+ *
+ * @author Derrick Lockwood
+ * @created 2026-10-17.
+ */
+public class KelinciEngine {
+
+    private static final Logger LOGGER = Logger.getLogger(KelinciEngine.class.getName());
+
+    static {
+        LOGGER.setParent(Logger.getLogger(Kelinci.class.getName()));
+    }
+
+    private final int id;
+    private final AFLConfig config;
+    private final SocketAddress address;
+    private final AFLServer aflServer;
+    private final List<FuzzerWorker> workers;
+    private final CrashStore crashStore;
+    private final List<Thread> threads = new ArrayList<>();
+    private StandaloneFuzzer fuzzer;
+
+    private KelinciEngine(int id, AFLConfig config, SocketAddress address, AFLServer aflServer,
+            List<FuzzerWorker> workers, CrashStore crashStore) {
+        this.id = id;
+        this.config = config;
+        this.address = address;
+        this.aflServer = aflServer;
+        this.workers = workers;
+        this.crashStore = crashStore;
+    }
+
+    /**
+     * Sets up {@code workerCount} workers for the method call described by {@code definition}, loading
+     * the instrumented classes from {@code instrumentedDir}, and a server listening on {@code address}.
+     *
+     * @return the engine or null if the definition couldn't be parsed or the config can't be served
+     */
+    public static KelinciEngine create(int id, AFLConfig config, Logger logger, File instrumentedDir,
+            JSONObject definition, SocketAddress address, int workerCount) throws Exception {
+        SharedMemory sharedMemory = null;
+        if (config.sharedMemoryFile != null) {
+            if (workerCount > 1) {
+                LOGGER.log(Level.SEVERE, "A shared memory file serves a single interface, it can't be used with " + workerCount + " workers");
+                return null;
+            }
+            sharedMemory = SharedMemory.create(config.sharedMemoryFile);
+            LOGGER.log(Level.INFO, "Shared memory mapped at " + config.sharedMemoryFile.getPath());
+        }
+        AdmissionQueue.Policy policy;
+        try {
+            policy = AdmissionQueue.Policy.parse(config.queuePolicy);
+        } catch (IllegalArgumentException e) {
+            LOGGER.log(Level.SEVERE, "Unknown queue policy " + config.queuePolicy + ", expected reject, block or shed_oldest");
+            return null;
+        }
+        List<FuzzerWorker> workers = new ArrayList<>();
+        // every worker parses the definition into its own class loader
+        for (int i = 0; i < workerCount; i++) {
+            FuzzerWorker worker = FuzzerWorker.create(i, config, logger, instrumentedDir, definition);
+            if (worker == null) {
+                return null;
+            }
+            workers.add(worker);
+        }
+        CrashStore crashStore = null;
+        if (config.crashDir != null) {
+            crashStore = new CrashStore(config.crashDir, config.crashFrames);
+            for (FuzzerWorker worker : workers) {
+                worker.setCrashStore(crashStore);
+            }
+        }
+        AdmissionQueue<FuzzRequest> requestQueue = new AdmissionQueue<>(policy, workerCount, config.queueMaxWait);
+        return new KelinciEngine(id, config, address, new AFLServer(address, sharedMemory, requestQueue), workers,
+                crashStore);
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public AFLConfig getConfig() {
+        return config;
+    }
+
+    public AFLServer getServer() {
+        return aflServer;
+    }
+
+    public List<FuzzerWorker> getWorkers() {
+        return Collections.unmodifiableList(workers);
+    }
+
+    /**
+     * @return the store crashes are bucketed into or null if the config has no crash directory
+     */
+    public CrashStore getCrashStore() {
+        return crashStore;
+    }
+
+    /**
+     * Runs {@code file} on the first worker or, if it is a directory, replays every file in it across all
+     * workers, see {@link CorpusReplay}.
+     *
+     * @param summaryFile where a directory's replay writes a line per input, the replay is resumed if it exists
+     * @return the status of the run, 0 for a directory
+     */
+    public int runOnce(File file, File summaryFile) {
+        int exitStatus = 0;
+        if (file.isDirectory()) {
+            try {
+                new CorpusReplay(workers).run(file, summaryFile);
+            } catch (IOException e) {
+                LOGGER.log(Level.SEVERE, "Error replaying " + file.getAbsolutePath(), e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return exitStatus;
+        }
+        FuzzerWorker worker = workers.get(0);
+        ExecutorService service = worker.createExecutorService();
+        LOGGER.log(Level.INFO, "Running Once on file " + file.getAbsolutePath());
+        try {
+            exitStatus = worker.runMethodCall(service, file);
+        } catch (IOException e) {
+            LOGGER.log(Level.SEVERE, "Error reading from file " + file.getAbsolutePath());
+            e.printStackTrace();
+        } finally {
+            LOGGER.log(Level.INFO, "Service Shutting Down");
+            service.shutdownNow();
+        }
+        return exitStatus;
+    }
+
+    /**
+     * Writes a script running afl-fuzz with the interface options needed to reach this engine.
+     */
+    public void createRunAFLFile(File file) throws IOException {
+        if (file.exists()) {
+            if (!file.delete()) {
+                throw new RuntimeException("Can't delete old " + file.getName() + " file");
+            }
+            if (!file.createNewFile()) {
+                throw new RuntimeException("Run AFL file not created");
+            }
+            file.deleteOnExit();
+        }
+        String interfaceOptions = "";
+        if (config.sharedMemoryFile != null) {
+            interfaceOptions = "-m " + config.sharedMemoryFile.getAbsolutePath() + " ";
+        }
+        if (UnixSockets.isUnixAddress(address)) {
+            interfaceOptions += "-u " + UnixSockets.getPath(address).toAbsolutePath() + " ";
+        } else if (address instanceof InetSocketAddress) {
+            interfaceOptions += "-p " + ((InetSocketAddress) address).getPort() + " ";
+        }
+        String environment = "";
+        if (CoverageMap.getSize() != CoverageMap.DEFAULT_SIZE) {
+            // afl-fuzz and the interface then use a map as large as the server's
+            environment = CoverageMap.ENV_VAR + "=" + CoverageMap.getSize() + " ";
+        }
+        String s = "#!/bin/bash\n" +
+                "\n" +
+                environment + "afl-fuzz -t " + (config.timeout + 1000) + " -i in_dir -o out_dir ./fuzzerside/interface " +
+                interfaceOptions + "@@";
+        try (OutputStream outputStream = new FileOutputStream(file)) {
+            outputStream.write(s.getBytes());
+            outputStream.flush();
+        }
+        if (!file.setExecutable(true, false)) {
+            throw new RuntimeException("Can't set run AFL file executable");
+        }
+    }
+
+    /**
+     * @return the name the engine's {@link KelinciStatsMBean} is registered under
+     */
+    public ObjectName getStatsName() throws JMException {
+        return new ObjectName("afl:type=Kelinci,engine=" + id);
+    }
+
+    /**
+     * Starts the server thread and one thread per worker and registers the engine's statistics with the
+     * platform MBean server, where jconsole or any JMX client can read them while fuzzing.
+     */
+    public void start() {
+        registerStats();
+        threads.add(new Thread(aflServer, "kelinci-" + id + "-server"));
+        for (FuzzerWorker worker : workers) {
+            threads.add(new Thread(() -> worker.serve(aflServer), "kelinci-" + id + "-worker-" + worker.getId()));
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        LOGGER.log(Level.INFO, "Engine " + id + " listening on " + address + " with " + workers.size() + " workers");
+    }
+
+    /**
+     * Fuzzes without AFL, the workers run the whole loop in this JVM, see {@link StandaloneFuzzer}. The server
+     * isn't started, the statistics are registered as with {@link #start()}.
+     *
+     * @param inputDirectory seeds, or {@link StandaloneFuzzer#RESUME} to carry on from {@code outputDirectory}
+     * @param outputDirectory where the queue, crashes and hangs are written as afl-fuzz writes them
+     */
+    public void fuzz(File inputDirectory, File outputDirectory) throws IOException {
+        registerStats();
+        fuzzer = new StandaloneFuzzer(workers, aflServer.getStats(), crashStore, outputDirectory);
+        fuzzer.start(inputDirectory);
+        LOGGER.log(Level.INFO, "Engine " + id + " fuzzing standalone with " + workers.size() + " workers");
+    }
+
+    private void registerStats() {
+        try {
+            MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = getStatsName();
+            if (mBeanServer.isRegistered(name)) {
+                mBeanServer.unregisterMBean(name);
+            }
+            mBeanServer.registerMBean(aflServer.getStats(), name);
+        } catch (JMException e) {
+            LOGGER.log(Level.WARNING, "Can't register statistics MBean for engine " + id, e);
+        }
+    }
+
+    public void stop() {
+        try {
+            MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+            if (mBeanServer.isRegistered(getStatsName())) {
+                mBeanServer.unregisterMBean(getStatsName());
+            }
+        } catch (JMException e) {
+            LOGGER.log(Level.WARNING, "Can't unregister statistics MBean for engine " + id, e);
+        }
+        aflServer.stop(false);
+        if (fuzzer != null) {
+            fuzzer.stop();
+        }
+        for (FuzzerWorker worker : workers) {
+            worker.stop();
+        }
+    }
+
+    /**
+     * Waits for the server and the workers to finish after {@link #stop()}, then writes out the crash
+     * buckets' final counts.
+     */
+    public void join() throws InterruptedException {
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        if (fuzzer != null) {
+            fuzzer.join();
+        }
+        if (crashStore != null) {
+            try {
+                crashStore.flush();
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Can't write crash bucket summary", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,182 @@
+package afl;
+
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+import static afl.Kelinci.STATUS_CRASH;
+import static afl.Kelinci.STATUS_SUCCESS;
+import static afl.Kelinci.STATUS_TIMEOUT;
+
+/**
+ * Counters behind {@link KelinciStatsMBean}. Workers record into {@link LongAdder}s so they never
+ * contend with each other, the sums are only taken when the MBean is read.
+ *
+ * @author Derrick Lockwood
+ * @created 2026-10-17.
+ */
+public class KelinciStats implements KelinciStatsMBean {
+
+    private static final long SAMPLE_INTERVAL = 1000000000L;
+
+    private final AdmissionQueue<?> requestQueue;
+    private final long startTime = System.currentTimeMillis();
+    private final LongAdder successes = new LongAdder();
+    private final LongAdder timeouts = new LongAdder();
+    private final LongAdder crashes = new LongAdder();
+    private final LongAdder commErrors = new LongAdder();
+    private final LongAdder durationNanos = new LongAdder();
+    private final LongAccumulator maxDurationNanos = new LongAccumulator(Math::max, 0);
+    // last sample the rates are taken against, guarded by this
+    private long sampleTime = System.nanoTime();
+    private long[] sample = new long[3];
+    private double[] rates = new double[3];
+
+    public KelinciStats(AdmissionQueue<?> requestQueue) {
+        this.requestQueue = requestQueue;
+    }
+
+    /**
+     * Records an execution that ended with {@code status} after {@code nanos}.
+     */
+    public void recordExecution(int status, long nanos) {
+        switch (status) {
+            case STATUS_SUCCESS:
+                successes.increment();
+                break;
+            case STATUS_TIMEOUT:
+                timeouts.increment();
+                break;
+            case STATUS_CRASH:
+                crashes.increment();
+                break;
+            default:
+                return;
+        }
+        durationNanos.add(nanos);
+        maxDurationNanos.accumulate(nanos);
+    }
+
+    public void recordCommError() {
+        commErrors.increment();
+    }
+
+    @Override
+    public long getExecutions() {
+        return successes.sum() + timeouts.sum() + crashes.sum();
+    }
+
+    @Override
+    public long getSuccesses() {
+        return successes.sum();
+    }
+
+    @Override
+    public long getTimeouts() {
+        return timeouts.sum();
+    }
+
+    @Override
+    public long getCrashes() {
+        return crashes.sum();
+    }
+
+    @Override
+    public double getExecutionsPerSecond() {
+        double[] rates = sampleRates();
+        return rates[0] + rates[1] + rates[2];
+    }
+
+    @Override
+    public double getSuccessesPerSecond() {
+        return sampleRates()[0];
+    }
+
+    @Override
+    public double getTimeoutsPerSecond() {
+        return sampleRates()[1];
+    }
+
+    @Override
+    public double getCrashesPerSecond() {
+        return sampleRates()[2];
+    }
+
+    /**
+     * Takes a new sample if the last one is older than a second and updates the rates against it.
+     */
+    private synchronized double[] sampleRates() {
+        long now = System.nanoTime();
+        long elapsed = now - sampleTime;
+        if (elapsed >= SAMPLE_INTERVAL) {
+            long[] counts = {successes.sum(), timeouts.sum(), crashes.sum()};
+            for (int i = 0; i < counts.length; i++) {
+                rates[i] = Math.max(0, counts[i] - sample[i]) * 1e9 / elapsed;
+            }
+            sample = counts;
+            sampleTime = now;
+        }
+        return rates.clone();
+    }
+
+    @Override
+    public double getMeanDuration() {
+        long executions = getExecutions();
+        return executions == 0 ? 0 : durationNanos.sum() / 1e6 / executions;
+    }
+
+    @Override
+    public double getMaxDuration() {
+        return maxDurationNanos.get() / 1e6;
+    }
+
+    @Override
+    public int getQueueDepth() {
+        return requestQueue.getDepth();
+    }
+
+    @Override
+    public int getQueueCapacity() {
+        return requestQueue.getCapacity();
+    }
+
+    @Override
+    public long getRejectedConnections() {
+        return requestQueue.getRejectedCount() + requestQueue.getShedCount();
+    }
+
+    @Override
+    public long getCommErrors() {
+        return commErrors.sum();
+    }
+
+    @Override
+    public long getUptime() {
+        return System.currentTimeMillis() - startTime;
+    }
+
+    @Override
+    public synchronized void reset() {
+        successes.reset();
+        timeouts.reset();
+        crashes.reset();
+        commErrors.reset();
+        durationNanos.reset();
+        maxDurationNanos.reset();
+        sample = new long[3];
+        rates = new double[3];
+        sampleTime = System.nanoTime();
+    }
+
+    @Override
+    public String toString() {
+        return "KelinciStats{" +
+                "executions=" + getExecutions() +
+                ", successes=" + getSuccesses() +
+                ", timeouts=" + getTimeouts() +
+                ", crashes=" + getCrashes() +
+                ", commErrors=" + getCommErrors() +
+                ", meanDuration=" + String.format("%.3fms", getMeanDuration()) +
+                ", maxDuration=" + String.format("%.3fms", getMaxDuration()) +
+                '}';
+    }
+}
@@ -0,0 +1,64 @@
+package afl;
+
+/**
+ * Live statistics of one {@link KelinciEngine}, registered with the platform MBean server as
+ * {@code afl:type=Kelinci,engine=<id>}.
+ * <p>
+ * Rates are taken over the interval since the previous sample, a sample is taken at most once a second
+ * when a rate is read.
+ *
+ * @author Derrick Lockwood
+ * @created 2026-10-17.
+ */
+public interface KelinciStatsMBean {
+
+    long getExecutions();
+
+    long getSuccesses();
+
+    long getTimeouts();
+
+    long getCrashes();
+
+    double getExecutionsPerSecond();
+
+    double getSuccessesPerSecond();
+
+    double getTimeoutsPerSecond();
+
+    double getCrashesPerSecond();
+
+    /**
+     * @return mean duration of an execution in milliseconds
+     */
+    double getMeanDuration();
+
+    /**
+     * @return longest execution in milliseconds
+     */
+    double getMaxDuration();
+
+    int getQueueDepth();
+
+    int getQueueCapacity();
+
+    /**
+     * @return requests answered with {@code STATUS_QUEUE_FULL}, whether rejected or shed
+     */
+    long getRejectedConnections();
+
+    /**
+     * @return requests that couldn't be read and connections lost while being served
+     */
+    long getCommErrors();
+
+    /**
+     * @return milliseconds since the engine was created
+     */
+    long getUptime();
+
+    /**
+     * Zeroes the counters, the uptime and queue are left as they are.
+     */
+    void reset();
+}
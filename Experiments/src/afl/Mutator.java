@@ -0,0 +1,325 @@
+package afl;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * AFL's mutations of an input, for the {@link StandaloneFuzzer}.
+ * <p>
+ * The deterministic stages walk the input once per {@link Stage}: every bit flipped, every byte flipped,
+ * every byte added to and subtracted from up to {@link #ARITH_MAX} and every byte set to each of the
+ * interesting values. Havoc stacks a random number of random mutations, including the 16 and 32 bit
+ * arithmetic and interesting values in either byte order and block deletes, clones and overwrites.
+ * Splice crosses two inputs over at a point between their first and last differing bytes.
+ *
+ * @author Derrick Lockwood
+ * @created 2026-10-17.
+ */
+public class Mutator {
+
+    public static final int ARITH_MAX = 35;
+    /**
+     * Havoc stacks up to {@code 2^HAVOC_STACK_POW2} mutations.
+     */
+    public static final int HAVOC_STACK_POW2 = 7;
+    public static final int MAX_SIZE = 1024 * 1024;
+    private static final int HAVOC_BLOCK_SMALL = 32;
+    private static final int HAVOC_BLOCK_MEDIUM = 128;
+    private static final int HAVOC_BLOCK_LARGE = 1500;
+    private static final int HAVOC_BLOCK_XL = 32768;
+    static final byte[] INTERESTING_8 = {-128, -1, 0, 1, 16, 32, 64, 100, 127};
+    static final short[] INTERESTING_16 = {-128, -1, 0, 1, 16, 32, 64, 100, 127,
+            -32768, -129, 128, 255, 256, 512, 1000, 1024, 4096, 32767};
+    static final int[] INTERESTING_32 = {-128, -1, 0, 1, 16, 32, 64, 100, 127,
+            -32768, -129, 128, 255, 256, 512, 1000, 1024, 4096, 32767,
+            -2147483648, -100663046, -32769, 32768, 65535, 65536, 100663045, 2147483647};
+
+    /**
+     * Deterministic stages in the order they run, each giving {@link #getPerByte()} mutations per byte.
+     */
+    public enum Stage {
+        FLIP1("flip1", 8),
+        FLIP8("flip8", 1),
+        ARITH8("arith8", 2 * ARITH_MAX),
+        INT8("int8", INTERESTING_8.length);
+
+        private final String name;
+        private final int perByte;
+
+        Stage(String name, int perByte) {
+            this.name = name;
+            this.perByte = perByte;
+        }
+
+        /**
+         * @return the stage as AFL names it in the {@code op} of a queue entry
+         */
+        public String getName() {
+            return name;
+        }
+
+        public int getPerByte() {
+            return perByte;
+        }
+    }
+
+    private final Random random;
+
+    public Mutator(Random random) {
+        this.random = random;
+    }
+
+    /**
+     * @return the number of deterministic mutations of an input of {@code length} bytes
+     */
+    public static int getDeterministicCount(int length) {
+        int count = 0;
+        for (Stage stage : Stage.values()) {
+            count += stage.perByte * length;
+        }
+        return count;
+    }
+
+    /**
+     * @return the stage the {@code step}th deterministic mutation of an input of {@code length} bytes is in
+     */
+    public static Stage getStage(int length, int step) {
+        for (Stage stage : Stage.values()) {
+            if (step < stage.perByte * length) {
+                return stage;
+            }
+            step -= stage.perByte * length;
+        }
+        throw new IndexOutOfBoundsException("Step " + step + " past the deterministic stages");
+    }
+
+    /**
+     * Writes the {@code step}th deterministic mutation of {@code input} to {@code output}, which must be as long.
+     *
+     * @return the position of the byte mutated
+     */
+    public static int deterministic(byte[] input, int step, byte[] output) {
+        System.arraycopy(input, 0, output, 0, input.length);
+        for (Stage stage : Stage.values()) {
+            int stageSize = stage.perByte * input.length;
+            if (step >= stageSize) {
+                step -= stageSize;
+                continue;
+            }
+            int position = step / stage.perByte;
+            int value = step % stage.perByte;
+            switch (stage) {
+                case FLIP1:
+                    output[position] ^= (byte) (0x80 >>> value);
+                    break;
+                case FLIP8:
+                    output[position] ^= (byte) 0xff;
+                    break;
+                case ARITH8:
+                    // +1 .. +ARITH_MAX, then -1 .. -ARITH_MAX
+                    int delta = value < ARITH_MAX ? value + 1 : ARITH_MAX - value - 1;
+                    output[position] += (byte) delta;
+                    break;
+                default:
+                    output[position] = INTERESTING_8[value];
+                    break;
+            }
+            return position;
+        }
+        throw new IndexOutOfBoundsException("Step past the deterministic stages");
+    }
+
+    /**
+     * @return {@code input} with a random stack of mutations applied, {@code input} itself is left as is
+     */
+    public byte[] havoc(byte[] input) {
+        byte[] data = Arrays.copyOf(input, input.length);
+        int length = data.length;
+        int stacking = 1 << (1 + random.nextInt(HAVOC_STACK_POW2));
+        for (int i = 0; i < stacking; i++) {
+            switch (random.nextInt(length < 2 ? 11 : 15)) {
+                case 0:
+                    if (length > 0) {
+                        int bit = random.nextInt(length << 3);
+                        data[bit >>> 3] ^= (byte) (0x80 >>> (bit & 7));
+                    }
+                    break;
+                case 1:
+                    if (length > 0) {
+                        data[random.nextInt(length)] = INTERESTING_8[random.nextInt(INTERESTING_8.length)];
+                    }
+                    break;
+                case 2:
+                    if (length >= 2) {
+                        putShort(data, random.nextInt(length - 1), INTERESTING_16[random.nextInt(INTERESTING_16.length)]);
+                    }
+                    break;
+                case 3:
+                    if (length >= 4) {
+                        putInt(data, random.nextInt(length - 3), INTERESTING_32[random.nextInt(INTERESTING_32.length)]);
+                    }
+                    break;
+                case 4:
+                    if (length > 0) {
+                        data[random.nextInt(length)] -= (byte) (1 + random.nextInt(ARITH_MAX));
+                    }
+                    break;
+                case 5:
+                    if (length > 0) {
+                        data[random.nextInt(length)] += (byte) (1 + random.nextInt(ARITH_MAX));
+                    }
+                    break;
+                case 6:
+                case 7:
+                    if (length >= 2) {
+                        int position = random.nextInt(length - 1);
+                        int delta = 1 + random.nextInt(ARITH_MAX);
+                        putShort(data, position, getShort(data, position) + (random.nextBoolean() ? delta : -delta));
+                    }
+                    break;
+                case 8:
+                case 9:
+                    if (length >= 4) {
+                        int position = random.nextInt(length - 3);
+                        int delta = 1 + random.nextInt(ARITH_MAX);
+                        putInt(data, position, getInt(data, position) + (random.nextBoolean() ? delta : -delta));
+                    }
+                    break;
+                case 10:
+                    if (length > 0) {
+                        // never a no-op, unlike setting a random value
+                        data[random.nextInt(length)] ^= (byte) (1 + random.nextInt(255));
+                    }
+                    break;
+                case 11:
+                case 12:
+                    // deleting is weighted over cloning to keep inputs small
+                    int deleteLength = chooseBlockLength(length - 1);
+                    int deleteFrom = random.nextInt(length - deleteLength + 1);
+                    System.arraycopy(data, deleteFrom + deleteLength, data, deleteFrom,
+                            length - deleteFrom - deleteLength);
+                    length -= deleteLength;
+                    break;
+                case 13:
+                    if (length + HAVOC_BLOCK_XL < MAX_SIZE) {
+                        boolean actuallyClone = random.nextInt(4) != 0;
+                        int cloneLength = actuallyClone ? chooseBlockLength(length) : chooseBlockLength(HAVOC_BLOCK_XL);
+                        int cloneFrom = actuallyClone ? random.nextInt(length - cloneLength + 1) : 0;
+                        int cloneTo = random.nextInt(length);
+                        byte[] grown = new byte[length + cloneLength];
+                        System.arraycopy(data, 0, grown, 0, cloneTo);
+                        if (actuallyClone) {
+                            System.arraycopy(data, cloneFrom, grown, cloneTo, cloneLength);
+                        } else {
+                            Arrays.fill(grown, cloneTo, cloneTo + cloneLength,
+                                    random.nextBoolean() ? (byte) random.nextInt(256) : data[random.nextInt(length)]);
+                        }
+                        System.arraycopy(data, cloneTo, grown, cloneTo + cloneLength, length - cloneTo);
+                        data = grown;
+                        length = grown.length;
+                    }
+                    break;
+                default:
+                    int copyLength = chooseBlockLength(length - 1);
+                    int copyFrom = random.nextInt(length - copyLength + 1);
+                    int copyTo = random.nextInt(length - copyLength + 1);
+                    if (random.nextInt(4) != 0) {
+                        if (copyFrom != copyTo) {
+                            System.arraycopy(data, copyFrom, data, copyTo, copyLength);
+                        }
+                    } else {
+                        Arrays.fill(data, copyTo, copyTo + copyLength,
+                                random.nextBoolean() ? (byte) random.nextInt(256) : data[random.nextInt(length)]);
+                    }
+                    break;
+            }
+        }
+        return length == data.length ? data : Arrays.copyOf(data, length);
+    }
+
+    /**
+     * Takes {@code first} up to a random point between the first and last byte it differs from {@code second}
+     * in and {@code second} from there on.
+     *
+     * @return the spliced input or null if the two differ in less than two bytes
+     */
+    public byte[] splice(byte[] first, byte[] second) {
+        int length = Math.min(first.length, second.length);
+        int firstDiff = -1;
+        int lastDiff = -1;
+        for (int i = 0; i < length; i++) {
+            if (first[i] != second[i]) {
+                if (firstDiff == -1) {
+                    firstDiff = i;
+                }
+                lastDiff = i;
+            }
+        }
+        if (firstDiff < 0 || lastDiff < 2 || firstDiff == lastDiff) {
+            return null;
+        }
+        int splitAt = firstDiff + random.nextInt(lastDiff - firstDiff);
+        byte[] spliced = Arrays.copyOf(second, second.length);
+        System.arraycopy(first, 0, spliced, 0, splitAt);
+        return spliced;
+    }
+
+    /**
+     * @return a block length no longer than {@code limit}, mostly short ones
+     */
+    private int chooseBlockLength(int limit) {
+        int min;
+        int max;
+        switch (random.nextInt(4)) {
+            case 0:
+                min = 1;
+                max = HAVOC_BLOCK_SMALL;
+                break;
+            case 1:
+                min = HAVOC_BLOCK_SMALL;
+                max = HAVOC_BLOCK_MEDIUM;
+                break;
+            case 2:
+                min = HAVOC_BLOCK_MEDIUM;
+                max = HAVOC_BLOCK_LARGE;
+                break;
+            default:
+                min = random.nextInt(10) == 0 ? HAVOC_BLOCK_LARGE : 1;
+                max = random.nextInt(10) == 0 ? HAVOC_BLOCK_XL : HAVOC_BLOCK_LARGE;
+                break;
+        }
+        if (min >= limit) {
+            min = 1;
+        }
+        return Math.min(min + random.nextInt(Math.max(1, Math.min(max, limit) - min + 1)), Math.max(1, limit));
+    }
+
+    // multi byte values go in either byte order, the target's is unknown
+
+    private int getShort(byte[] data, int position) {
+        return (data[position] & 0xff) << 8 | data[position + 1] & 0xff;
+    }
+
+    private void putShort(byte[] data, int position, int value) {
+        if (random.nextBoolean()) {
+            value = Short.reverseBytes((short) value);
+        }
+        data[position] = (byte) (value >>> 8);
+        data[position + 1] = (byte) value;
+    }
+
+    private int getInt(byte[] data, int position) {
+        return (data[position] & 0xff) << 24 | (data[position + 1] & 0xff) << 16 |
+                (data[position + 2] & 0xff) << 8 | data[position + 3] & 0xff;
+    }
+
+    private void putInt(byte[] data, int position, int value) {
+        if (random.nextBoolean()) {
+            value = Integer.reverseBytes(value);
+        }
+        data[position] = (byte) (value >>> 24);
+        data[position + 1] = (byte) (value >>> 16);
+        data[position + 2] = (byte) (value >>> 8);
+        data[position + 3] = (byte) value;
+    }
+}
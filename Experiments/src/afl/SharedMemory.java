@@ -0,0 +1,118 @@
+package afl;
+
+import instrumentor.CoverageMap;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Memory-mapped file shared with the interface program when both run on the same host.
+ * <p>
+ * The interface writes the input into the input region and rings the server with a single
+ * {@link FuzzRequest#SHARED_MEMORY_MODE} byte over the socket. The server reads the input in place
+ * and writes the coverage straight into the coverage region, answering with the status byte only.
+ * <p>
+ * Layout (native byte order):
+ * <pre>
+ *   0                  int   length of the input, written by the interface
+ *   4                  int   size of the coverage region, written by the server
+ *   HEADER_SIZE        byte[coverage size]  coverage
+ *   + coverage size    byte[MAX_INPUT]      input
+ * </pre>
+ * One mapping serves one interface at a time, every AFL instance needs its own file.
+ *
+ * @author Derrick Lockwood
+ * @created 2026-10-17.
+ */
+public class SharedMemory {
+
+    public static final int MAX_INPUT = FuzzRequest.MAX_INPUT;
+    private static final int INPUT_LENGTH_OFFSET = 0;
+    private static final int COVERAGE_SIZE_OFFSET = 4;
+    private static final int HEADER_SIZE = 16;
+
+    private final File file;
+    private final MappedByteBuffer buffer;
+    private final int coverageSize;
+    private final int inputOffset;
+    // cells written by the last response, -1 if it wrote the whole region
+    private int[] written = new int[0];
+    private int writtenCount = -1;
+
+    private SharedMemory(File file, MappedByteBuffer buffer, int coverageSize) {
+        this.file = file;
+        this.buffer = buffer;
+        this.coverageSize = coverageSize;
+        this.inputOffset = HEADER_SIZE + coverageSize;
+    }
+
+    /**
+     * Creates (or truncates) the file and maps it.
+     */
+    public static SharedMemory create(File file) throws IOException {
+        int coverageSize = CoverageMap.getSize();
+        long size = HEADER_SIZE + coverageSize + MAX_INPUT;
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw")) {
+            randomAccessFile.setLength(0);
+            randomAccessFile.setLength(size);
+            MappedByteBuffer buffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+            buffer.order(ByteOrder.nativeOrder());
+            buffer.putInt(COVERAGE_SIZE_OFFSET, coverageSize);
+            return new SharedMemory(file, buffer, coverageSize);
+        }
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * @return the input written by the interface, read in place, or null if the length is invalid
+     */
+    public ByteBuffer getInput() {
+        int length = buffer.getInt(INPUT_LENGTH_OFFSET);
+        if (length < 0 || length > MAX_INPUT) {
+            return null;
+        }
+        ByteBuffer input = buffer.duplicate();
+        input.limit(inputOffset + length).position(inputOffset);
+        return input.slice();
+    }
+
+    /**
+     * Writes the coverage of a run into the coverage region. Given the cells the run hit, only those and
+     * the cells of the previous response are written.
+     *
+     * @param hits     indices of the non-zero cells of {@code mem}
+     * @param hitCount number of {@code hits}, -1 to write all of {@code mem}
+     */
+    public synchronized void writeCoverage(byte[] mem, int[] hits, int hitCount) {
+        int size = Math.min(mem.length, coverageSize);
+        if (hitCount < 0 || writtenCount < 0) {
+            ByteBuffer coverage = buffer.duplicate();
+            coverage.position(HEADER_SIZE);
+            coverage.put(mem, 0, size);
+            writtenCount = -1;
+            if (hitCount < 0) {
+                return;
+            }
+        } else {
+            for (int i = 0; i < writtenCount; i++) {
+                buffer.put(HEADER_SIZE + written[i], (byte) 0);
+            }
+            for (int i = 0; i < hitCount; i++) {
+                buffer.put(HEADER_SIZE + hits[i], mem[hits[i]]);
+            }
+        }
+        if (written.length < hitCount) {
+            written = new int[hits.length];
+        }
+        System.arraycopy(hits, 0, written, 0, hitCount);
+        writtenCount = hitCount;
+    }
+}
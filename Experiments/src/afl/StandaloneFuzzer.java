@@ -0,0 +1,412 @@
+package afl;
+
+import instrumentor.CoverageView;
+import method.MethodData;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static afl.Kelinci.STATUS_CRASH;
+import static afl.Kelinci.STATUS_SUCCESS;
+import static afl.Kelinci.STATUS_TIMEOUT;
+
+/**
+ * Runs AFL's fuzzing loop inside the JVM, without afl-fuzz, the interface or a socket between them.
+ * <p>
+ * Every worker of the engine runs the loop on its own thread against one shared queue: take the next
+ * queue entry, run its deterministic stages if no worker has yet (inputs up to
+ * {@link #DETERMINISTIC_MAX_SIZE} bytes), then {@link #HAVOC_CYCLES} havoc runs and a few rounds of
+ * splicing it with another entry, see {@link Mutator}. A run's coverage is read straight from the
+ * worker's coverage map ({@code AFLPathMem.mem} of its class loader), only the cells it hit, and an input
+ * reaching a new edge or hit count bucket, see {@link VirginMap}, is added to the queue.
+ * <p>
+ * The output directory is laid out as afl-fuzz lays it out, so afl-cmin, afl-tmin, afl-whatsup or a
+ * later AFL run can take it over:
+ * <pre>
+ * queue/id:000000,orig:seed
+ * queue/id:000007,src:000002,op:havoc,+cov
+ * crashes/id:000000,sig:06,src:000007,op:flip1,pos:12
+ * hangs/id:000000,src:000003,op:splice
+ * fuzzer_stats
+ * </pre>
+ * Crashes and hangs are kept if their coverage is new among the crashes or hangs, AFL's unique crashes,
+ * and go to the engine's {@link CrashStore} as well if it has one. Seeds are read from the input directory,
+ * or from the output's queue when it is {@link #RESUME}, which carries on an earlier run.
+ *
+ * @author Derrick Lockwood
+ * @created 2026-10-17.
+ */
+public class StandaloneFuzzer {
+
+    public static final String QUEUE = "queue";
+    public static final String CRASHES = "crashes";
+    public static final String HANGS = "hangs";
+    public static final String FUZZER_STATS = "fuzzer_stats";
+    /**
+     * Input directory that resumes from the output's queue, as with afl-fuzz.
+     */
+    public static final String RESUME = "-";
+    public static final int HAVOC_CYCLES = 256;
+    public static final int SPLICE_CYCLES = 15;
+    public static final int SPLICE_HAVOC = 32;
+    /**
+     * Longer inputs skip the deterministic stages, which take about 90 runs per byte.
+     */
+    public static final int DETERMINISTIC_MAX_SIZE = 1024;
+    private static final long STATUS_INTERVAL = 5000;
+    private static final Logger LOGGER = Logger.getLogger(StandaloneFuzzer.class.getName());
+
+    static {
+        LOGGER.setParent(Logger.getLogger(Kelinci.class.getName()));
+    }
+
+    private final List<FuzzerWorker> workers;
+    private final KelinciStats stats;
+    private final CrashStore crashStore;
+    private final File outputDirectory;
+    private final File queueDirectory;
+    private final File crashDirectory;
+    private final File hangDirectory;
+    private final List<Entry> queue = new CopyOnWriteArrayList<>();
+    private final VirginMap virgin;
+    private final VirginMap crashVirgin;
+    private final VirginMap hangVirgin;
+    private final AtomicInteger crashCount = new AtomicInteger();
+    private final AtomicInteger hangCount = new AtomicInteger();
+    private final List<Thread> threads = new ArrayList<>();
+    private final long startTime = System.currentTimeMillis();
+    private volatile boolean isRunning = true;
+    private Thread statusThread;
+    // next entry to fuzz and completed passes over the queue, guarded by queue
+    private int cursor;
+    private int cycles;
+    private int seedCount;
+
+    public StandaloneFuzzer(List<FuzzerWorker> workers, KelinciStats stats, CrashStore crashStore,
+            File outputDirectory) {
+        this.workers = workers;
+        this.stats = stats;
+        this.crashStore = crashStore;
+        this.outputDirectory = outputDirectory;
+        queueDirectory = new File(outputDirectory, QUEUE);
+        crashDirectory = new File(outputDirectory, CRASHES);
+        hangDirectory = new File(outputDirectory, HANGS);
+        int size = workers.get(0).getCoverage().length;
+        virgin = new VirginMap(size);
+        crashVirgin = new VirginMap(size);
+        hangVirgin = new VirginMap(size);
+    }
+
+    /**
+     * Runs the seeds in {@code inputDirectory} to fill the queue, then starts a fuzzing thread per worker.
+     */
+    public void start(File inputDirectory) throws IOException {
+        boolean resume = RESUME.equals(inputDirectory.getPath());
+        for (File directory : new File[]{queueDirectory, crashDirectory, hangDirectory}) {
+            if (!directory.isDirectory() && !directory.mkdirs()) {
+                throw new IOException("Can't create output directory " + directory.getPath());
+            }
+        }
+        File[] existing = Objects.requireNonNull(queueDirectory.listFiles());
+        if (!resume && existing.length > 0) {
+            throw new IOException("Output directory " + outputDirectory.getPath() + " already holds a queue, " +
+                    "resume it with input directory " + RESUME + " or remove it");
+        }
+        File[] seeds = resume ? existing : inputDirectory.listFiles();
+        if (seeds == null) {
+            throw new IOException("Can't read input directory " + inputDirectory.getPath());
+        }
+        // stable ids, a resumed queue keeps its order
+        Arrays.sort(seeds);
+        runSeeds(seeds, resume);
+        seedCount = queue.size();
+        if (queue.isEmpty()) {
+            throw new IOException("No seed in " + inputDirectory.getPath() + " runs without crashing or timing out");
+        }
+        LOGGER.log(Level.INFO, queue.size() + " seeds queued, " + virgin.getCoveredCount() + " edges covered, " +
+                "fuzzing on " + workers.size() + " workers into " + outputDirectory.getPath());
+
+        for (FuzzerWorker worker : workers) {
+            // the GC measuring the heap after every run would stop all workers at once
+            worker.setMeasureHeap(false);
+            threads.add(new Thread(() -> fuzz(worker), "kelinci-fuzz-" + worker.getId()));
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        statusThread = new Thread(this::reportStatus, "kelinci-fuzz-status");
+        statusThread.setDaemon(true);
+        statusThread.start();
+    }
+
+    private void runSeeds(File[] seeds, boolean resume) throws IOException {
+        FuzzerWorker worker = workers.get(0);
+        ExecutionWatchdog watchdog = worker.createWatchdog();
+        try {
+            for (File seed : seeds) {
+                if (!seed.isFile() || seed.getName().startsWith(".")) {
+                    continue;
+                }
+                if (seed.length() > Mutator.MAX_SIZE) {
+                    LOGGER.log(Level.WARNING, "Skipping seed " + seed.getName() + ", larger than " + Mutator.MAX_SIZE);
+                    continue;
+                }
+                byte[] data = Files.readAllBytes(seed.toPath());
+                MethodData methodData = worker.run(watchdog.getExecutorService(), data);
+                int status = FuzzerWorker.getStatus(methodData);
+                if (status != STATUS_SUCCESS) {
+                    if (status == STATUS_TIMEOUT) {
+                        watchdog.check();
+                    }
+                    LOGGER.log(Level.WARNING, "Skipping seed " + seed.getName() + ", it " +
+                            (status == STATUS_CRASH ? "crashes" : "times out"));
+                    continue;
+                }
+                CoverageView coverage = worker.getCoverageView();
+                byte[] trace = coverage.getMap();
+                VirginMap.classify(trace, coverage.getHits(), coverage.getHitCount());
+                virgin.update(trace, coverage.getHits(), coverage.getHitCount());
+                if (resume) {
+                    queue.add(new Entry(queue.size(), data));
+                } else {
+                    addToQueue(data, "orig:" + seed.getName());
+                }
+            }
+        } finally {
+            watchdog.shutdownNow();
+        }
+    }
+
+    private void fuzz(FuzzerWorker worker) {
+        ExecutionWatchdog watchdog = worker.createWatchdog();
+        Random random = new Random();
+        Mutator mutator = new Mutator(random);
+        try {
+            while (isRunning) {
+                Entry entry = nextEntry();
+                byte[] data = entry.data;
+                if (data.length <= DETERMINISTIC_MAX_SIZE && entry.deterministicClaimed.compareAndSet(false, true)) {
+                    byte[] output = new byte[data.length];
+                    int count = Mutator.getDeterministicCount(data.length);
+                    for (int step = 0; step < count && isRunning; step++) {
+                        int position = Mutator.deterministic(data, step, output);
+                        runInput(worker, watchdog, output, entry, Mutator.getStage(data.length, step).getName(),
+                                position);
+                    }
+                }
+                for (int i = 0; i < HAVOC_CYCLES && isRunning; i++) {
+                    runInput(worker, watchdog, mutator.havoc(data), entry, "havoc", -1);
+                }
+                for (int i = 0; i < SPLICE_CYCLES && isRunning && queue.size() > 1; i++) {
+                    Entry other = queue.get(random.nextInt(queue.size()));
+                    byte[] spliced = other == entry ? null : mutator.splice(data, other.data);
+                    if (spliced == null) {
+                        continue;
+                    }
+                    for (int j = 0; j < SPLICE_HAVOC && isRunning; j++) {
+                        runInput(worker, watchdog, mutator.havoc(spliced), entry, "splice", -1);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.SEVERE, "Can't write fuzzer output, stopping worker " + worker.getId(), e);
+        } finally {
+            watchdog.shutdownNow();
+        }
+    }
+
+    private Entry nextEntry() {
+        synchronized (queue) {
+            if (cursor >= queue.size()) {
+                cursor = 0;
+                cycles++;
+            }
+            return queue.get(cursor++);
+        }
+    }
+
+    /**
+     * Runs a mutated input and keeps it if it reached something new.
+     *
+     * @param position byte the mutation was at, -1 if it isn't at one
+     */
+    private void runInput(FuzzerWorker worker, ExecutionWatchdog watchdog, byte[] input, Entry source, String op,
+            int position) throws IOException {
+        long start = System.nanoTime();
+        MethodData methodData = worker.run(watchdog.getExecutorService(), input);
+        int status = FuzzerWorker.getStatus(methodData);
+        stats.recordExecution(status, System.nanoTime() - start);
+        CoverageView coverage = worker.getCoverageView();
+        byte[] trace = coverage.getMap();
+        int[] hits = coverage.getHits();
+        int hitCount = coverage.getHitCount();
+        VirginMap.classify(trace, hits, hitCount);
+        switch (status) {
+            case STATUS_SUCCESS:
+                int found = virgin.update(trace, hits, hitCount);
+                if (found != VirginMap.NONE) {
+                    addToQueue(input, describe(source, op, position) + (found == VirginMap.NEW_EDGE ? ",+cov" : ""));
+                }
+                break;
+            case STATUS_TIMEOUT:
+                // a target ignoring the interrupt would hold up every later run
+                watchdog.check();
+                if (hangVirgin.update(trace, hits, hitCount) != VirginMap.NONE) {
+                    save(hangDirectory, hangCount, input, describe(source, op, position));
+                }
+                break;
+            default:
+                if (crashStore != null) {
+                    crashStore.record(methodData.getReturnException(), input.length,
+                            file -> Files.write(file.toPath(), input));
+                }
+                if (crashVirgin.update(trace, hits, hitCount) != VirginMap.NONE) {
+                    if (crashStore == null) {
+                        FuzzerWorker.logCrash(methodData.getReturnException());
+                    }
+                    // reported to AFL's tools as the abort the interface raises for a crash
+                    save(crashDirectory, crashCount, input, "sig:06," + describe(source, op, position));
+                }
+                break;
+        }
+    }
+
+    private static String describe(Entry source, String op, int position) {
+        String description = String.format("src:%06d,op:%s", source.id, op);
+        return position < 0 ? description : description + ",pos:" + position;
+    }
+
+    private void addToQueue(byte[] input, String description) throws IOException {
+        synchronized (queue) {
+            // deterministic stages reuse their buffer
+            Entry entry = new Entry(queue.size(), input.clone());
+            write(new File(queueDirectory, String.format("id:%06d,%s", entry.id, description)), input);
+            queue.add(entry);
+        }
+        if (LOGGER.isLoggable(Level.FINE)) {
+            LOGGER.log(Level.FINE, "New path " + description + ", " + queue.size() + " queued");
+        }
+    }
+
+    private void save(File directory, AtomicInteger count, byte[] input, String description) throws IOException {
+        File file = new File(directory, String.format("id:%06d,%s", count.getAndIncrement(), description));
+        write(file, input);
+        LOGGER.log(Level.INFO, "Saved " + file.getPath());
+    }
+
+    /**
+     * Writes next to {@code file} and moves it over, AFL's tools never see a half written input.
+     */
+    private static void write(File file, byte[] input) throws IOException {
+        File tmp = new File(file.getParentFile(), "." + file.getName() + ".tmp");
+        Files.write(tmp.toPath(), input);
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private void reportStatus() {
+        while (isRunning) {
+            try {
+                Thread.sleep(STATUS_INTERVAL);
+            } catch (InterruptedException e) {
+                return;
+            }
+            writeStats();
+            LOGGER.log(Level.INFO, String.format("%d execs, %.0f/s, %d paths, %d unique crashes, %d unique hangs, " +
+                            "%d edges", stats.getExecutions(), stats.getExecutionsPerSecond(), queue.size(),
+                    crashCount.get(), hangCount.get(), virgin.getCoveredCount()));
+        }
+    }
+
+    /**
+     * Writes {@code fuzzer_stats} with the fields afl-whatsup reads.
+     */
+    private void writeStats() {
+        int cycles;
+        synchronized (queue) {
+            cycles = this.cycles;
+        }
+        long executions = stats.getExecutions();
+        File file = new File(outputDirectory, FUZZER_STATS);
+        File tmp = new File(outputDirectory, "." + FUZZER_STATS + ".tmp");
+        try (BufferedWriter writer = new BufferedWriter(new FileWriter(tmp))) {
+            writeStat(writer, "start_time", startTime / 1000);
+            writeStat(writer, "last_update", System.currentTimeMillis() / 1000);
+            writeStat(writer, "fuzzer_pid", ProcessHandle.current().pid());
+            writeStat(writer, "cycles_done", cycles);
+            writeStat(writer, "execs_done", executions);
+            writeStat(writer, "execs_per_sec",
+                    String.format("%.2f", executions * 1000.0 / Math.max(1, System.currentTimeMillis() - startTime)));
+            writeStat(writer, "paths_total", queue.size());
+            writeStat(writer, "paths_found", queue.size() - seedCount);
+            writeStat(writer, "unique_crashes", crashCount.get());
+            writeStat(writer, "unique_hangs", hangCount.get());
+            writeStat(writer, "bitmap_cvg", String.format("%.2f%%", virgin.getCoveredCount() * 100.0 / virgin.getSize()));
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Can't write " + file.getPath(), e);
+            return;
+        }
+        try {
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Can't write " + file.getPath(), e);
+        }
+    }
+
+    private static void writeStat(BufferedWriter writer, String key, Object value) throws IOException {
+        writer.write(String.format("%-18s: %s\n", key, value));
+    }
+
+    public void stop() {
+        isRunning = false;
+        if (statusThread != null) {
+            statusThread.interrupt();
+        }
+    }
+
+    /**
+     * Waits for the workers to finish their current run after {@link #stop()} and writes the final statistics.
+     */
+    public void join() throws InterruptedException {
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        writeStats();
+    }
+
+    public int getQueueSize() {
+        return queue.size();
+    }
+
+    public int getCrashCount() {
+        return crashCount.get();
+    }
+
+    public int getHangCount() {
+        return hangCount.get();
+    }
+
+    private static class Entry {
+        private final int id;
+        private final byte[] data;
+        private final AtomicBoolean deterministicClaimed = new AtomicBoolean();
+
+        Entry(int id, byte[] data) {
+            this.id = id;
+            this.data = data;
+        }
+    }
+}
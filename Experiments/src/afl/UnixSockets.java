@@ -0,0 +1,97 @@
+package afl;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.ProtocolFamily;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.file.Path;
+
+/**
+ * Unix domain socket addresses and channels for {@link AFLServer}.
+ * <p>
+ * They only exist from JDK 16 on ({@code java.net.UnixDomainSocketAddress}). The fuzzer is built for older
+ * JDKs as well, so they are looked up reflectively, and without them the server can only listen on TCP.
+ *
+ * @author Derrick Lockwood
+ * @created 2026-10-17.
+ */
+public class UnixSockets {
+
+    private static final Class<?> ADDRESS_CLASS = findAddressClass();
+
+    private UnixSockets() {
+    }
+
+    private static Class<?> findAddressClass() {
+        try {
+            return Class.forName("java.net.UnixDomainSocketAddress");
+        } catch (ClassNotFoundException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return true if this JVM has Unix domain socket channels
+     */
+    public static boolean isSupported() {
+        return ADDRESS_CLASS != null;
+    }
+
+    /**
+     * @throws UnsupportedOperationException before JDK 16
+     */
+    public static SocketAddress getAddress(String path) {
+        return (SocketAddress) invoke("of", null, new Class<?>[]{String.class}, path);
+    }
+
+    public static boolean isUnixAddress(SocketAddress address) {
+        return ADDRESS_CLASS != null && ADDRESS_CLASS.isInstance(address);
+    }
+
+    /**
+     * @param address a Unix domain socket address, see {@link #isUnixAddress(SocketAddress)}
+     */
+    public static Path getPath(SocketAddress address) {
+        return (Path) invoke("getPath", address, new Class<?>[0]);
+    }
+
+    /**
+     * @return an unbound server channel for Unix domain sockets
+     * @throws UnsupportedOperationException before JDK 16
+     */
+    public static ServerSocketChannel openServerChannel() throws IOException {
+        if (ADDRESS_CLASS == null) {
+            throw new UnsupportedOperationException("Unix domain sockets need JDK 16 or later");
+        }
+        try {
+            Method open = ServerSocketChannel.class.getMethod("open", ProtocolFamily.class);
+            return (ServerSocketChannel) open.invoke(null, StandardProtocolFamily.valueOf("UNIX"));
+        } catch (InvocationTargetException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IllegalStateException("Can't open Unix domain socket channel", e.getCause());
+        } catch (NoSuchMethodException | IllegalAccessException e) {
+            throw new IllegalStateException("Can't open Unix domain socket channel", e);
+        }
+    }
+
+    private static Object invoke(String name, Object target, Class<?>[] parameterTypes, Object... args) {
+        if (ADDRESS_CLASS == null) {
+            throw new UnsupportedOperationException("Unix domain sockets need JDK 16 or later");
+        }
+        try {
+            return ADDRESS_CLASS.getMethod(name, parameterTypes).invoke(target, args);
+        } catch (InvocationTargetException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalStateException("Can't call UnixDomainSocketAddress." + name, e.getCause());
+        } catch (NoSuchMethodException | IllegalAccessException e) {
+            throw new IllegalStateException("Can't call UnixDomainSocketAddress." + name, e);
+        }
+    }
+}
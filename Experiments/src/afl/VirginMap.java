@@ -0,0 +1,134 @@
+package afl;
+
+import java.util.Arrays;
+
+/**
+ * The bits of the coverage map no run has reached yet, AFL's {@code virgin_bits}.
+ * <p>
+ * A run's hit counts are first put into AFL's buckets (1, 2, 3, 4-7, 8-15, 16-31, 32-127, 128+), one bit
+ * each, so a loop running a few more times isn't new. A run is interesting if any of its bits is still set
+ * here. Workers share one map: the check is done without a lock and only a run that looks new takes it,
+ * checks again and clears its bits, so every new bit is claimed by exactly one run.
+ *
+ * @author Derrick Lockwood
+ * @created 2026-10-17.
+ */
+public class VirginMap {
+
+    public static final int NONE = 0;
+    /**
+     * Only the hit count of an edge already reached is new.
+     */
+    public static final int NEW_COUNT = 1;
+    /**
+     * An edge no run reached before.
+     */
+    public static final int NEW_EDGE = 2;
+    private static final byte[] COUNT_CLASS = new byte[256];
+
+    static {
+        COUNT_CLASS[1] = 1;
+        COUNT_CLASS[2] = 2;
+        COUNT_CLASS[3] = 4;
+        Arrays.fill(COUNT_CLASS, 4, 8, (byte) 8);
+        Arrays.fill(COUNT_CLASS, 8, 16, (byte) 16);
+        Arrays.fill(COUNT_CLASS, 16, 32, (byte) 32);
+        Arrays.fill(COUNT_CLASS, 32, 128, (byte) 64);
+        Arrays.fill(COUNT_CLASS, 128, 256, (byte) 128);
+    }
+
+    private final byte[] virgin;
+
+    public VirginMap(int size) {
+        virgin = new byte[size];
+        Arrays.fill(virgin, (byte) 0xff);
+    }
+
+    /**
+     * Replaces the hit counts in {@code trace} by their buckets.
+     */
+    public static void classify(byte[] trace) {
+        classify(trace, null, -1);
+    }
+
+    /**
+     * Replaces the hit counts in {@code trace} by their buckets, only reading the cells hit if known.
+     *
+     * @param hits     indices of the non-zero cells of {@code trace}, each once
+     * @param hitCount number of {@code hits}, -1 to read all of {@code trace}
+     */
+    public static void classify(byte[] trace, int[] hits, int hitCount) {
+        int cells = hitCount < 0 ? trace.length : hitCount;
+        for (int j = 0; j < cells; j++) {
+            int i = hitCount < 0 ? j : hits[j];
+            if (trace[i] != 0) {
+                trace[i] = COUNT_CLASS[trace[i] & 0xff];
+            }
+        }
+    }
+
+    /**
+     * Clears the bits of a classified {@code trace} from the map.
+     *
+     * @return {@link #NEW_EDGE}, {@link #NEW_COUNT} or {@link #NONE} for what the trace reached first
+     */
+    public int update(byte[] trace) {
+        return update(trace, null, -1);
+    }
+
+    /**
+     * Clears the bits of a classified {@code trace} from the map, only reading the cells hit if known.
+     *
+     * @param hits     indices of the non-zero cells of {@code trace}
+     * @param hitCount number of {@code hits}, -1 to read all of {@code trace}
+     * @return {@link #NEW_EDGE}, {@link #NEW_COUNT} or {@link #NONE} for what the trace reached first
+     */
+    public int update(byte[] trace, int[] hits, int hitCount) {
+        int cells = hitCount < 0 ? trace.length : hitCount;
+        if (!hasNewBits(trace, hits, hitCount, cells)) {
+            return NONE;
+        }
+        synchronized (this) {
+            int result = NONE;
+            for (int j = 0; j < cells; j++) {
+                int i = hitCount < 0 ? j : hits[j];
+                int bits = trace[i] & virgin[i];
+                if (bits != 0) {
+                    result = virgin[i] == (byte) 0xff ? NEW_EDGE : Math.max(result, NEW_COUNT);
+                    virgin[i] &= (byte) ~bits;
+                }
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Bits are only ever cleared, a stale read here can only make a run look new and is caught under the lock.
+     */
+    private boolean hasNewBits(byte[] trace, int[] hits, int hitCount, int cells) {
+        for (int j = 0; j < cells; j++) {
+            int i = hitCount < 0 ? j : hits[j];
+            if ((trace[i] & virgin[i]) != 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the number of edges reached by any run
+     */
+    public synchronized int getCoveredCount() {
+        int count = 0;
+        for (byte b : virgin) {
+            if (b != (byte) 0xff) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    public int getSize() {
+        return virgin.length;
+    }
+}
@@ -0,0 +1,73 @@
+package harness;
+
+import method.MethodCall;
+import method.MethodCallSession;
+import method.MethodData;
+import method.VirtualThreads;
+import method.callbacks.EmptyMethodCallback;
+import mock.TransformClassLoader;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Measures executions per second of a method through
+ * {@link MethodCallSession#runConcurrentMethods(ExecutorService, int, long)}, once on a fixed pool of platform
+ * threads (as {@link InAndOut} used to) and once with a thread per execution, virtual where the JVM has them.
+ * <p>
+ * Usage: ExecutorBenchmark &lt;classes dir&gt; &lt;class&gt; &lt;method&gt; [executions] [in flight] [pool size]
+ *
+ * @author Derrick Lockwood
+ * @created 2026-10-17.
+ */
+public class ExecutorBenchmark {
+
+    private static final long TIMEOUT = 10000;
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 3) {
+            System.err.println("Usage: ExecutorBenchmark <classes dir> <class> <method> [executions] [in flight] [pool size]");
+            return;
+        }
+        int executions = args.length > 3 ? Integer.parseInt(args[3]) : 10000;
+        int inFlight = args.length > 4 ? Integer.parseInt(args[4]) : 1000;
+        int poolSize = args.length > 5 ? Integer.parseInt(args[5]) : 10;
+
+        TransformClassLoader classLoader = new TransformClassLoader(args[0]);
+        MethodCall methodCall = new MethodCall(classLoader, args[1], args[2]);
+        methodCall.constructMethodClass(null);
+        MethodCallSession session = methodCall.createSession(EmptyMethodCallback.create());
+        // a full GC after every execution would serialize them and hide the difference
+        session.setMeasureHeap(false);
+
+        // warm up both before measuring either
+        run(session, Executors.newFixedThreadPool(poolSize), executions / 10, inFlight);
+        run(session, VirtualThreads.newThreadPerTaskExecutor(), executions / 10, inFlight);
+
+        double pool = run(session, Executors.newFixedThreadPool(poolSize), executions, inFlight);
+        System.out.printf("Fixed pool of %d threads: %.0f exec/s%n", poolSize, pool);
+        double perTask = run(session, VirtualThreads.newThreadPerTaskExecutor(), executions, inFlight);
+        System.out.printf("Thread per execution (%s): %.0f exec/s%n",
+                VirtualThreads.isSupported() ? "virtual" : "platform, no virtual threads in this JVM", perTask);
+    }
+
+    private static double run(MethodCallSession session, ExecutorService executorService, int executions,
+            int inFlight) {
+        int failed = 0;
+        long start = System.nanoTime();
+        for (int done = 0; done < executions; done += inFlight) {
+            for (MethodData methodData : session.runConcurrentMethods(executorService,
+                    Math.min(inFlight, executions - done), TIMEOUT)) {
+                if (methodData.getReturnException() != null) {
+                    failed++;
+                }
+            }
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        executorService.shutdownNow();
+        if (failed > 0) {
+            System.out.println(failed + " of " + executions + " executions failed");
+        }
+        return executions / seconds;
+    }
+}
@@ -3,6 +3,7 @@ package harness;
 import method.MethodCall;
 import method.MethodCallSession;
 import method.MethodData;
+import method.VirtualThreads;
 import method.callbacks.CSVMethodCallback;
 import mock.ClassMap;
 import mock.ConstructAnswer;
@@ -51,7 +52,8 @@ public class InAndOut {
                 CSVMethodCallback.createWithImmediateWrite("resources/inandoutfuzz.csv",
                         InAndOut::getMethodInput));
         int threads = 10;
-        ExecutorService executorService = Executors.newFixedThreadPool(threads);
+        // a thread per pie, virtual on JDKs that have them
+        ExecutorService executorService = VirtualThreads.newThreadPerTaskExecutor();
         List<Future<MethodData>> futures = new ArrayList<>(threads);
         boolean isValid;
         while (pieAnswer.hasNext()) {
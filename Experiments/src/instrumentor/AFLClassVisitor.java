@@ -18,6 +18,8 @@ import net.bytebuddy.pool.TypePool;
  * Does nothing more than call the AFLMethodVisitor.
  */
 public class AFLClassVisitor extends ClassVisitor {
+    private String className;
+
     public AFLClassVisitor(ClassVisitor cv) {
         super(Opcodes.ASM5, cv);
     }
@@ -27,6 +29,7 @@ public class AFLClassVisitor extends ClassVisitor {
         access &= ~Opcodes.ACC_FINAL;
         access &= ~(Opcodes.ACC_PUBLIC | Opcodes.ACC_PROTECTED | Opcodes.ACC_PRIVATE);
         access |= Opcodes.ACC_PUBLIC;
+        className = s;
         super.visit(i, access, s, s1, s2, strings);
     }
 
@@ -40,7 +43,7 @@ public class AFLClassVisitor extends ClassVisitor {
         access |= Opcodes.ACC_PUBLIC;
         mv = cv.visitMethod(access, name, desc, signature, exceptions);
         if (mv != null) {
-            mv = new AFLMethodVisitor(mv);
+            mv = new AFLMethodVisitor(mv, className, name, desc);
         }
         return mv;
     }
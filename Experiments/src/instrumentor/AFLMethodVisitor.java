@@ -1,17 +1,20 @@
 package instrumentor;
 
-import edu.cmu.sv.kelinci.Mem;
 import net.bytebuddy.asm.AsmVisitorWrapper;
 import net.bytebuddy.description.method.MethodDescription;
 import net.bytebuddy.dynamic.DynamicType;
 import net.bytebuddy.jar.asm.ClassReader;
 import net.bytebuddy.jar.asm.ClassWriter;
+import net.bytebuddy.jar.asm.Handle;
 import net.bytebuddy.jar.asm.Label;
 import net.bytebuddy.jar.asm.MethodVisitor;
+import net.bytebuddy.jar.asm.Type;
 import net.bytebuddy.matcher.ElementMatcher;
 
+import java.util.ArrayList;
 import java.util.HashSet;
-import java.util.Random;
+import java.util.List;
+import java.util.Set;
 
 import static net.bytebuddy.jar.asm.Opcodes.*;
 
@@ -20,102 +23,379 @@ import static net.bytebuddy.jar.asm.Opcodes.*;
  * <p>
  * Adds AFL-like instrumentation to branches.
  * <p>
- * Uses the ASM MethodVisitor to instrument the start of methods,
- * the location immediately after a branch (else case), as well as
- * all labels.
+ * Uses the ASM MethodVisitor to instrument the start of basic blocks:
+ * the start of methods, the location immediately after a conditional
+ * branch (else case) and the labels something jumps to.
  * <p>
- * There are also methods in MethodVisitor that we could override
- * to instrument tableswitch, lookupswitch and try-catch. But as those
- * jump to labels in any case (including default), instrumenting the
- * labels only is enough.
+ * Most labels are not jump targets, they only mark line numbers, local
+ * variable ranges and the bounds of try blocks, and code after a GOTO,
+ * return or throw is only reached through a label. A label is a jump target
+ * if a jump, a switch or a try-catch block visited before it names it, or if
+ * the compiler put a stack map frame at it, which the verifier requires at
+ * every target. Several of these at one place share one probe. A jump back to
+ * a label that got no probe, possible only in class files without frames,
+ * gets a probe on the jump itself: before a GOTO, else in a stub at the end of
+ * the method that the jump goes through.
+ * <p>
+ * Probe ids come from {@link ProbeRegistry}, derived from the class, the
+ * method and the probe's index in it.
+ * <p>
+ * With thread-local coverage the probes write into the {@link CoverageCarrier} of
+ * the running thread instead of {@link AFLPathMem#mem}, so threads of the target
+ * don't mix their edges. The carrier is looked up once at the start of the method
+ * and kept in a local variable inserted right after the parameters, the method's
+ * own locals move up by one.
  */
 public class AFLMethodVisitor extends MethodVisitor {
 
-    Random r;
-    private HashSet<Integer> ids;
-
-    public AFLMethodVisitor(MethodVisitor mv) {
-        super(ASM5, mv);
+    private static final String CARRIER = Type.getInternalName(CoverageCarrier.class);
+    private final String className;
+    private final String methodName;
+    private final String descriptor;
+    private int probeIndex;
+    // slot of the carrier, -1 if probes write into AFLPathMem
+    private final int carrier;
+    // labels named by a jump, switch or try-catch block not visited yet
+    private final Set<Label> targets = new HashSet<>();
+    private final Set<Label> visitedLabels = new HashSet<>();
+    private final Set<Label> probedLabels = new HashSet<>();
+    // labels at the current location, since the last instruction
+    private final List<Label> currentLabels = new ArrayList<>();
+    // stubs of the jumps back to labels without probe, each followed by its label
+    private final List<Label> stubs = new ArrayList<>();
+    // a block starts at the current location, the probe goes before the next instruction
+    private boolean blockStart;
+    // probes there would be at the start, after every jump and at every label
+    private int labelProbes;
 
-        ids = new HashSet<>();
-        r = new Random();
+    public AFLMethodVisitor(MethodVisitor mv, String className, String methodName, String descriptor) {
+        this(mv, className, methodName, descriptor, false, false);
     }
 
     /**
-     * Best effort to generate a random id that is not already in use.
+     * @param threadLocal write into the running thread's {@link CoverageCarrier}
      */
+    public AFLMethodVisitor(MethodVisitor mv, String className, String methodName, String descriptor,
+            boolean isStatic, boolean threadLocal) {
+        super(ASM5, mv);
+        this.className = className;
+        this.methodName = methodName;
+        this.descriptor = descriptor;
+        if (threadLocal) {
+            carrier = (Type.getArgumentsAndReturnSizes(descriptor) >> 2) - (isStatic ? 1 : 0);
+        } else {
+            carrier = -1;
+        }
+    }
+
     private int getNewLocationId() {
-        int id;
-        int tries = 0;
-        do {
-            id = r.nextInt(Mem.SIZE);
-            tries++;
-        } while (tries <= 10 && ids.contains(id));
-        ids.add(id);
-        return id;
+        return ProbeRegistry.getId(className, methodName, descriptor, probeIndex++);
     }
 
     /**
-     * Instrument a program location, AFL style. Each location gets a
-     * compile time random ID, hopefully unique, but maybe not.
+     * Instrument a program location, AFL style. Each location gets an
+     * ID derived from where it is, unique unless it collides.
      * <p>
      * Instrumentation is the bytecode translation of this:
      * <p>
-     * Mem.mem[id^Mem.prev_location]++;
-     * Mem.prev_location = id >> 1;
+     * if (AFLPathMem.mem[id^AFLPathMem.prev_location]++ == 0) AFLPathMem.touch(id^AFLPathMem.prev_location);
+     * AFLPathMem.prev_location = id >> 1;
      */
     private void instrumentLocation() {
         Integer id = getNewLocationId();
+        if (carrier >= 0) {
+            instrumentCarrierLocation(id);
+            return;
+        }
         mv.visitFieldInsn(GETSTATIC, "instrumentor/AFLPathMem", "mem", "[B");
         mv.visitLdcInsn(id);
         mv.visitFieldInsn(GETSTATIC, "instrumentor/AFLPathMem", "prev_location", "I");
         mv.visitInsn(IXOR);
+        instrumentIncrement(() -> mv.visitMethodInsn(INVOKESTATIC, "instrumentor/AFLPathMem", "touch", "(I)V",
+                false));
+        // past 64K the shifted id no longer fits a short
+        mv.visitLdcInsn(id >> 1);
+        mv.visitFieldInsn(PUTSTATIC, "instrumentor/AFLPathMem", "prev_location", "I");
+    }
+
+    /**
+     * Bytecode translation of this, carrier being the local set at the start of the method:
+     * <p>
+     * if (carrier.mem[id^carrier.prev_location]++ == 0) carrier.touch(id^carrier.prev_location);
+     * carrier.prev_location = id >> 1;
+     */
+    private void instrumentCarrierLocation(int id) {
+        mv.visitVarInsn(ALOAD, carrier);
+        mv.visitFieldInsn(GETFIELD, CARRIER, "mem", "[B");
+        mv.visitLdcInsn(id);
+        mv.visitVarInsn(ALOAD, carrier);
+        mv.visitFieldInsn(GETFIELD, CARRIER, "prev_location", "I");
+        mv.visitInsn(IXOR);
+        instrumentIncrement(() -> {
+            mv.visitVarInsn(ALOAD, carrier);
+            mv.visitInsn(SWAP);
+            mv.visitMethodInsn(INVOKEVIRTUAL, CARRIER, "touch", "(I)V", false);
+        });
+        mv.visitVarInsn(ALOAD, carrier);
+        mv.visitLdcInsn(id >> 1);
+        mv.visitFieldInsn(PUTFIELD, CARRIER, "prev_location", "I");
+    }
+
+    /**
+     * Increments the cell of the map and index on the stack, calling {@code touch} with the index on the
+     * stack if the cell was zero.
+     */
+    private void instrumentIncrement(Runnable touch) {
+        Label increment = new Label();
+        // map, index -> map, index, map, index -> map, index, hits
         mv.visitInsn(DUP2);
         mv.visitInsn(BALOAD);
+        mv.visitInsn(DUP);
+        mv.visitJumpInsn(IFNE, increment);
+        // the first hit: map, index, 0 -> map, index, index -> touch -> map, index, 0
+        mv.visitInsn(POP);
+        mv.visitInsn(DUP);
+        touch.run();
+        mv.visitInsn(ICONST_0);
+        mv.visitLabel(increment);
         mv.visitInsn(ICONST_1);
         mv.visitInsn(IADD);
         mv.visitInsn(I2B);
         mv.visitInsn(BASTORE);
-        mv.visitIntInsn(SIPUSH, (id >> 1));
-        mv.visitFieldInsn(PUTSTATIC, "instrumentor/AFLPathMem", "prev_location", "I");
+    }
+
+    /**
+     * Locals past the parameters make room for the carrier.
+     */
+    private int shift(int local) {
+        return carrier >= 0 && local >= carrier ? local + 1 : local;
+    }
+
+    /**
+     * Adds the probe if a block starts here, called before every instruction.
+     */
+    private void instrumentBlockStart() {
+        if (blockStart) {
+            instrumentLocation();
+            probedLabels.addAll(currentLabels);
+            blockStart = false;
+        }
+        currentLabels.clear();
+    }
+
+    /**
+     * @return the label to jump to instead of {@code label}, a stub with a probe if the jump goes back to a
+     * label without one
+     */
+    private Label jumpTarget(Label label) {
+        if (!visitedLabels.contains(label)) {
+            targets.add(label);
+            return label;
+        }
+        if (probedLabels.contains(label)) {
+            return label;
+        }
+        Label stub = new Label();
+        stubs.add(stub);
+        stubs.add(label);
+        return stub;
+    }
+
+    @Override
+    public void visitVarInsn(int opcode, int var) {
+        instrumentBlockStart();
+        mv.visitVarInsn(opcode, shift(var));
+    }
+
+    @Override
+    public void visitIincInsn(int var, int increment) {
+        instrumentBlockStart();
+        mv.visitIincInsn(shift(var), increment);
+    }
+
+    @Override
+    public void visitInsn(int opcode) {
+        instrumentBlockStart();
+        mv.visitInsn(opcode);
+    }
+
+    @Override
+    public void visitIntInsn(int opcode, int operand) {
+        instrumentBlockStart();
+        mv.visitIntInsn(opcode, operand);
+    }
+
+    @Override
+    public void visitTypeInsn(int opcode, String type) {
+        instrumentBlockStart();
+        mv.visitTypeInsn(opcode, type);
+    }
+
+    @Override
+    public void visitFieldInsn(int opcode, String owner, String name, String descriptor) {
+        instrumentBlockStart();
+        mv.visitFieldInsn(opcode, owner, name, descriptor);
+    }
+
+    @Override
+    public void visitMethodInsn(int opcode, String owner, String name, String descriptor, boolean isInterface) {
+        instrumentBlockStart();
+        mv.visitMethodInsn(opcode, owner, name, descriptor, isInterface);
+    }
+
+    @Override
+    public void visitInvokeDynamicInsn(String name, String descriptor, Handle bootstrapMethodHandle,
+            Object... bootstrapMethodArguments) {
+        instrumentBlockStart();
+        mv.visitInvokeDynamicInsn(name, descriptor, bootstrapMethodHandle, bootstrapMethodArguments);
+    }
+
+    @Override
+    public void visitLdcInsn(Object value) {
+        instrumentBlockStart();
+        mv.visitLdcInsn(value);
+    }
+
+    @Override
+    public void visitMultiANewArrayInsn(String descriptor, int numDimensions) {
+        instrumentBlockStart();
+        mv.visitMultiANewArrayInsn(descriptor, numDimensions);
+    }
+
+    @Override
+    public void visitTableSwitchInsn(int min, int max, Label dflt, Label... labels) {
+        instrumentBlockStart();
+        Label[] switchTargets = new Label[labels.length];
+        for (int i = 0; i < labels.length; i++) {
+            switchTargets[i] = jumpTarget(labels[i]);
+        }
+        mv.visitTableSwitchInsn(min, max, jumpTarget(dflt), switchTargets);
+    }
+
+    @Override
+    public void visitLookupSwitchInsn(Label dflt, int[] keys, Label[] labels) {
+        instrumentBlockStart();
+        Label[] switchTargets = new Label[labels.length];
+        for (int i = 0; i < labels.length; i++) {
+            switchTargets[i] = jumpTarget(labels[i]);
+        }
+        mv.visitLookupSwitchInsn(jumpTarget(dflt), keys, switchTargets);
+    }
+
+    @Override
+    public void visitTryCatchBlock(Label start, Label end, Label handler, String type) {
+        targets.add(handler);
+        mv.visitTryCatchBlock(start, end, handler, type);
+    }
+
+    @Override
+    public void visitLocalVariable(String name, String descriptor, String signature, Label start, Label end,
+            int index) {
+        mv.visitLocalVariable(name, descriptor, signature, start, end, shift(index));
+    }
+
+    @Override
+    public void visitFrame(int type, int nLocal, Object[] local, int nStack, Object[] stack) {
+        // only jump targets have frames
+        if (!currentLabels.isEmpty()) {
+            blockStart = true;
+        }
+        // the frames are computed again once the carrier is in, see applyAFLTransformation
+        if (carrier < 0) {
+            mv.visitFrame(type, nLocal, local, nStack, stack);
+        }
     }
 
     @Override
     public void visitCode() {
         mv.visitCode();
+        if (carrier >= 0) {
+            mv.visitMethodInsn(INVOKESTATIC, "instrumentor/AFLPathMem", "carrier", "()L" + CARRIER + ";", false);
+            mv.visitVarInsn(ASTORE, carrier);
+        }
 
         /**
-         *  Add instrumentation at start of method.
+         *  Add instrumentation at start of method, before the first instruction
+         *  so a loop starting there shares the probe.
          */
-        instrumentLocation();
+        blockStart = true;
+        labelProbes++;
     }
 
     @Override
     public void visitJumpInsn(int opcode, Label label) {
-        mv.visitJumpInsn(opcode, label);
+        instrumentBlockStart();
+        if (opcode == GOTO && visitedLabels.contains(label) && !probedLabels.contains(label)) {
+            instrumentLocation();
+            mv.visitJumpInsn(opcode, label);
+        } else {
+            mv.visitJumpInsn(opcode, jumpTarget(label));
+        }
 
         /**
-         *  Add instrumentation after the jump.
+         *  Add instrumentation after the jump, unless there is no way past a GOTO.
          *  Instrumentation for the if-branch is handled by visitLabel().
          */
-        instrumentLocation();
+        blockStart = opcode != GOTO;
+        labelProbes++;
     }
 
     @Override
     public void visitLabel(Label label) {
         mv.visitLabel(label);
+        visitedLabels.add(label);
+        currentLabels.add(label);
 
         /**
-         * Since there is a label, we most probably (surely?) jump to this location. Instrument.
+         * Only instrument if we jump to this location.
          */
-        instrumentLocation();
+        if (targets.remove(label)) {
+            blockStart = true;
+        }
+        labelProbes++;
+    }
+
+    @Override
+    public void visitMaxs(int maxStack, int maxLocals) {
+        // after the last instruction, a GOTO, return or throw, so only reached by jumps
+        for (int i = 0; i < stubs.size(); i += 2) {
+            mv.visitLabel(stubs.get(i));
+            instrumentLocation();
+            mv.visitJumpInsn(GOTO, stubs.get(i + 1));
+        }
+        mv.visitMaxs(maxStack, maxLocals);
+    }
+
+    @Override
+    public void visitEnd() {
+        ProbeRegistry.recordMethod(className, methodName, descriptor, probeIndex, labelProbes);
+        mv.visitEnd();
     }
 
     public static DynamicType.Builder<?> applyAFLTransformation(DynamicType.Builder<?> builder,
             ElementMatcher<? super MethodDescription> descriptions) {
+        return applyAFLTransformation(builder, descriptions, false);
+    }
+
+    /**
+     * @param abortChecks also add the {@link AbortCheck}s of {@link AbortCheckMethodVisitor}
+     */
+    public static DynamicType.Builder<?> applyAFLTransformation(DynamicType.Builder<?> builder,
+            ElementMatcher<? super MethodDescription> descriptions, boolean abortChecks) {
+        return applyAFLTransformation(builder, descriptions, abortChecks, false);
+    }
+
+    /**
+     * @param abortChecks also add the {@link AbortCheck}s of {@link AbortCheckMethodVisitor}
+     * @param threadLocal write into the running thread's {@link CoverageCarrier}
+     */
+    public static DynamicType.Builder<?> applyAFLTransformation(DynamicType.Builder<?> builder,
+            ElementMatcher<? super MethodDescription> descriptions, boolean abortChecks, boolean threadLocal) {
         return builder.visit(new AsmVisitorWrapper.ForDeclaredMethods().writerFlags(ClassWriter.COMPUTE_MAXS | ClassWriter.COMPUTE_FRAMES).method(descriptions,
                 (AsmVisitorWrapper.ForDeclaredMethods.MethodVisitorWrapper) (instrumentedType, instrumentedMethod, methodVisitor, implementationContext, typePool, writerFlags, readerFlags) ->
-                        new AFLMethodVisitor(methodVisitor)));
+                        new AFLMethodVisitor(abortChecks ? new AbortCheckMethodVisitor(methodVisitor) : methodVisitor,
+                                instrumentedType.getName(), instrumentedMethod.getInternalName(),
+                                instrumentedMethod.getDescriptor(), instrumentedMethod.isStatic(), threadLocal)));
     }
 
 }
@@ -1,32 +1,118 @@
 package instrumentor;
 
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
 /**
+ * The coverage map, sized by {@link CoverageMap} when the class is initialized.
+ * <p>
+ * A probe hitting a cell that is still zero also records its index in {@link #touched}, so clearing and
+ * reading the map only costs as much as the cells hit. If more cells are hit than {@link #touched} holds
+ * the map is cleared and read in full instead, which is also done every {@link #FULL_CLEAR_INTERVAL}
+ * clears: an index lost to target threads racing on the count would otherwise leave its cell set for good.
+ * <p>
+ * With thread-local coverage every thread running instrumented code gets a {@link CoverageCarrier} of its
+ * own from {@link #carrier()}, they are added to {@link #mem} by {@link #merge()}.
+ *
  * @author Derrick Lockwood
  * @created 11/5/18.
  */
 public class AFLPathMem {
-    public static final int SIZE = 65536;
+    public static final int SIZE = CoverageMap.getSize();
+    public static final int TOUCHED_SIZE = SIZE >> 4;
+    public static final int FULL_CLEAR_INTERVAL = 1024;
     public static byte mem[] = new byte[SIZE];
     public static int prev_location = 0;
+    /**
+     * Indices of the cells hit since the last clear, in the order they were first hit. A cell wrapping
+     * around to zero is recorded again when hit next.
+     */
+    public static final int[] touched = new int[TOUCHED_SIZE];
+    /**
+     * Number of indices recorded in {@link #touched}, past its length once they no longer fit.
+     */
+    public static int touchedCount = 0;
+    private static int clears = 0;
+    private static final ThreadLocal<CoverageCarrier> carriers = ThreadLocal.withInitial(AFLPathMem::createCarrier);
+    private static final List<CoverageCarrier> activeCarriers = new CopyOnWriteArrayList<>();
+
+    private static CoverageCarrier createCarrier() {
+        CoverageCarrier carrier = new CoverageCarrier(SIZE, TOUCHED_SIZE);
+        activeCarriers.add(carrier);
+        return carrier;
+    }
 
     /**
-     * Clears the current measurements.
+     * Called by a probe hitting a cell that was zero.
      */
-    public static void clear() {
-        for (int i = 0; i < SIZE; i++)
-            mem[i] = 0;
+    public static void touch(int index) {
+        int count = touchedCount;
+        if (count < TOUCHED_SIZE) {
+            touched[count] = index;
+        }
+        touchedCount = count + 1;
+    }
+
+    /**
+     * Called at the start of every instrumented method with thread-local coverage.
+     */
+    public static CoverageCarrier carrier() {
+        return carriers.get();
     }
 
     /**
-     * Prints to stdout any cell that contains a non-zero value.
+     * Adds the coverage of every thread since the last merge to {@link #mem} and resets their previous
+     * locations. Carriers of threads that died are dropped. Hits of a thread still running may be lost
+     * while it's merged, the executing thread has finished by then.
      */
-    public static String print() {
-        StringBuilder stringBuilder = new StringBuilder();
-        for (int i = 0; i < SIZE; i++) {
-            if (mem[i] != 0) {
-                stringBuilder.append(i).append(" -> ").append(mem[i]).append('\n');
+    public static void merge() {
+        boolean full = clears % FULL_CLEAR_INTERVAL == 0;
+        for (CoverageCarrier carrier : activeCarriers) {
+            boolean alive = carrier.isAlive();
+            int count = carrier.touchedCount;
+            if (full || count > TOUCHED_SIZE) {
+                for (int i = 0; i < SIZE; i++) {
+                    mergeCell(carrier.mem, i);
+                }
+            } else {
+                for (int i = 0; i < count; i++) {
+                    mergeCell(carrier.mem, carrier.touched[i]);
+                }
+            }
+            carrier.touchedCount = 0;
+            carrier.prev_location = 0;
+            if (!alive) {
+                activeCarriers.remove(carrier);
+            }
+        }
+    }
+
+    private static void mergeCell(byte[] carrierMem, int index) {
+        byte hits = carrierMem[index];
+        if (hits != 0) {
+            if (mem[index] == 0) {
+                touch(index);
+            }
+            mem[index] += hits;
+            carrierMem[index] = 0;
+        }
+    }
+
+    /**
+     * Clears the current measurements and starts the next run from no previous location, as every AFL run
+     * does.
+     */
+    public static void clear() {
+        prev_location = 0;
+        int count = touchedCount;
+        if (count > TOUCHED_SIZE || clears++ % FULL_CLEAR_INTERVAL == 0) {
+            Arrays.fill(mem, (byte) 0);
+        } else {
+            for (int i = 0; i < count; i++) {
+                mem[touched[i]] = 0;
             }
         }
-        return stringBuilder.toString();
+        touchedCount = 0;
     }
 }
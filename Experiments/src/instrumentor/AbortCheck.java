@@ -0,0 +1,49 @@
+package instrumentor;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Lets a timed-out execution be stopped from the outside. With abort checks enabled every method entry
+ * and backward jump of the target starts with
+ * <p>
+ * if (AbortCheck.requested) AbortCheck.check();
+ * <p>
+ * which is a single field load and a branch that is never taken until some execution is aborted. Only
+ * then does {@link #check()} look up whether the current thread is one of the aborted ones and unwind it
+ * with an {@link ExecutionAbortedError}.
+ *
+ * @author Derrick Lockwood
+ * @created 2026-10-17.
+ */
+public class AbortCheck {
+    public static volatile boolean requested = false;
+    private static final Set<Thread> aborted = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Throws if the current thread was aborted. Keeps throwing on every check until the thread is
+     * cleared, so a target catching the error doesn't get to continue for long.
+     */
+    public static void check() {
+        if (aborted.contains(Thread.currentThread())) {
+            throw new ExecutionAbortedError();
+        }
+    }
+
+    /**
+     * Makes {@code thread} unwind at its next check.
+     */
+    public static synchronized void abort(Thread thread) {
+        aborted.add(thread);
+        requested = true;
+    }
+
+    /**
+     * Lets {@code thread} run again, to be called once it left the aborted execution.
+     */
+    public static synchronized void clear(Thread thread) {
+        if (aborted.remove(thread)) {
+            requested = !aborted.isEmpty();
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package instrumentor;
+
+import net.bytebuddy.jar.asm.Label;
+import net.bytebuddy.jar.asm.MethodVisitor;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import static net.bytebuddy.jar.asm.Opcodes.*;
+
+/**
+ * Adds an {@link AbortCheck} at the start of methods and before every backward jump, so that every
+ * loop and every recursion passes one.
+ * <p>
+ * A jump is backward if its label was already visited. Labels are visited in code order, loops compiled
+ * by javac jump back with a GOTO or a conditional jump to a label before it.
+ *
+ * @author Derrick Lockwood
+ * @created 2026-10-17.
+ */
+public class AbortCheckMethodVisitor extends MethodVisitor {
+
+    private final Set<Label> visitedLabels = new HashSet<>();
+
+    public AbortCheckMethodVisitor(MethodVisitor mv) {
+        super(ASM5, mv);
+    }
+
+    /**
+     * Bytecode translation of this:
+     * <p>
+     * if (AbortCheck.requested) AbortCheck.check();
+     * <p>
+     * It leaves the operand stack untouched, so it can go before a conditional jump.
+     */
+    private void instrumentCheck() {
+        Label skip = new Label();
+        mv.visitFieldInsn(GETSTATIC, "instrumentor/AbortCheck", "requested", "Z");
+        mv.visitJumpInsn(IFEQ, skip);
+        mv.visitMethodInsn(INVOKESTATIC, "instrumentor/AbortCheck", "check", "()V", false);
+        mv.visitLabel(skip);
+    }
+
+    @Override
+    public void visitCode() {
+        mv.visitCode();
+        instrumentCheck();
+    }
+
+    @Override
+    public void visitLabel(Label label) {
+        visitedLabels.add(label);
+        mv.visitLabel(label);
+    }
+
+    @Override
+    public void visitJumpInsn(int opcode, Label label) {
+        if (visitedLabels.contains(label)) {
+            instrumentCheck();
+        }
+        mv.visitJumpInsn(opcode, label);
+    }
+}
@@ -0,0 +1,42 @@
+package instrumentor;
+
+/**
+ * Coverage of one thread when probes are thread-local, see {@link AFLMethodVisitor}. Only its thread writes
+ * to it, {@link AFLPathMem#merge()} adds it to the loader's map at the end of an execution. Cells hit first
+ * are recorded in {@link #touched} like in {@link AFLPathMem}, so the merge only visits those.
+ *
+ * @author Derrick Lockwood
+ * @created 2026-10-17.
+ */
+public class CoverageCarrier {
+    public final byte[] mem;
+    public int prev_location = 0;
+    public final int[] touched;
+    public int touchedCount = 0;
+    private final Thread thread;
+
+    // public, AFLPathMem is defined again in every class loader and so in another runtime package
+    public CoverageCarrier(int size, int touchedSize) {
+        mem = new byte[size];
+        touched = new int[touchedSize];
+        thread = Thread.currentThread();
+    }
+
+    /**
+     * Called by a probe hitting a cell that was zero.
+     */
+    public void touch(int index) {
+        int count = touchedCount;
+        if (count < touched.length) {
+            touched[count] = index;
+        }
+        touchedCount = count + 1;
+    }
+
+    /**
+     * @return false once the thread has died and the carrier won't be written again
+     */
+    public boolean isAlive() {
+        return thread.isAlive();
+    }
+}
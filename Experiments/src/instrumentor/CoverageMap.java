@@ -0,0 +1,94 @@
+package instrumentor;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Size of the coverage map, shared by everything that writes probes into it ({@link AFLMethodVisitor},
+ * {@link ProbeRegistry}) and everything that ships it ({@code afl.FuzzRequest}, {@code afl.SharedMemory}).
+ * The map itself is {@link AFLPathMem#mem}, one per class loader.
+ * <p>
+ * The size is a power of two between {@link #MIN_SIZE} and {@link #MAX_SIZE}, so a probe id is the hash
+ * masked with {@link #getMask()}. It is chosen once at startup with {@link #configure(Integer)}, from the
+ * command line or from AFL++'s {@value #ENV_VAR} like afl-fuzz does, and is fixed as soon as it is first
+ * read: probes already instrumented can't move.
+ *
+ * @author Derrick Lockwood
+ * @created 2026-10-17.
+ */
+public class CoverageMap {
+
+    public static final int MIN_SIZE = 1 << 16;
+    public static final int MAX_SIZE = 1 << 20;
+    public static final int DEFAULT_SIZE = MIN_SIZE;
+    public static final String ENV_VAR = "AFL_MAP_SIZE";
+    private static final Logger LOGGER = Logger.getLogger(CoverageMap.class.getName());
+    private static int size = DEFAULT_SIZE;
+    private static boolean fixed;
+
+    private CoverageMap() {
+    }
+
+    /**
+     * Sets the size to {@code requested}, or else to {@value #ENV_VAR}, or else leaves the default.
+     *
+     * @param requested size asked for on the command line, null if not given
+     * @return the size the map ended up with
+     * @throws IllegalStateException if the map has already been used with a different size
+     */
+    public static int configure(Integer requested) {
+        if (requested == null) {
+            String environment = System.getenv(ENV_VAR);
+            if (environment != null && !environment.trim().isEmpty()) {
+                try {
+                    requested = Integer.parseInt(environment.trim());
+                } catch (NumberFormatException e) {
+                    LOGGER.log(Level.WARNING, "Ignoring " + ENV_VAR + "=" + environment + ", not a number");
+                }
+            }
+        }
+        if (requested != null) {
+            setSize(requested);
+        }
+        return getSize();
+    }
+
+    /**
+     * Rounds {@code requested} up to the next power of two and into [{@link #MIN_SIZE}, {@link #MAX_SIZE}].
+     */
+    static int toSize(int requested) {
+        if (requested <= MIN_SIZE) {
+            return MIN_SIZE;
+        }
+        if (requested >= MAX_SIZE) {
+            return MAX_SIZE;
+        }
+        return Integer.highestOneBit(requested - 1) << 1;
+    }
+
+    /**
+     * @throws IllegalStateException if the map has already been used with a different size
+     */
+    public static synchronized void setSize(int requested) {
+        int newSize = toSize(requested);
+        if (newSize != requested) {
+            LOGGER.log(Level.WARNING, "Coverage map size " + requested + " rounded to " + newSize);
+        }
+        if (fixed && newSize != size) {
+            throw new IllegalStateException("Coverage map is already in use with size " + size);
+        }
+        size = newSize;
+    }
+
+    /**
+     * @return the number of cells in the map, fixed from the first call on
+     */
+    public static synchronized int getSize() {
+        fixed = true;
+        return size;
+    }
+
+    public static int getMask() {
+        return getSize() - 1;
+    }
+}
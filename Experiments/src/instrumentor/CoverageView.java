@@ -0,0 +1,134 @@
+package instrumentor;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * The coverage map of one class loader's copy of {@link AFLPathMem}, as seen from outside of it.
+ * <p>
+ * After a run {@link #collect()} sorts the indices the probes recorded in {@link AFLPathMem#touched} and drops
+ * repeated and zero ones, so the run's coverage can be shipped and compared visiting only the cells hit, see
+ * {@link #getHits()}. When too many cells were hit to be recorded the hits are unknown and the whole map has
+ * to be read.
+ *
+ * @author Derrick Lockwood
+ * @created 2026-10-17.
+ */
+public class CoverageView {
+
+    private static final MethodType VOID = MethodType.methodType(void.class);
+    private final byte[] map;
+    private final ByteBuffer mapBuffer;
+    private final int[] touched;
+    private final MethodHandle touchedCount;
+    private final MethodHandle clear;
+    private final MethodHandle merge;
+    private final int[] hits;
+    private int hitCount = -1;
+
+    /**
+     * @param coverageClass a copy of {@link AFLPathMem}
+     */
+    public CoverageView(Class<?> coverageClass) throws ReflectiveOperationException {
+        MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+        map = (byte[]) coverageClass.getField("mem").get(null);
+        mapBuffer = ByteBuffer.wrap(map);
+        touched = (int[]) coverageClass.getField("touched").get(null);
+        touchedCount = lookup.findStaticGetter(coverageClass, "touchedCount", int.class);
+        clear = lookup.findStatic(coverageClass, "clear", VOID);
+        merge = lookup.findStatic(coverageClass, "merge", VOID);
+        hits = new int[touched.length];
+    }
+
+    private static RuntimeException rethrow(Throwable throwable) {
+        if (throwable instanceof RuntimeException) {
+            return (RuntimeException) throwable;
+        }
+        if (throwable instanceof Error) {
+            throw (Error) throwable;
+        }
+        return new IllegalStateException(throwable);
+    }
+
+    public byte[] getMap() {
+        return map;
+    }
+
+    /**
+     * @return the whole map as a buffer ready to be written, the same one every time
+     */
+    public ByteBuffer getMapBuffer() {
+        mapBuffer.clear();
+        return mapBuffer;
+    }
+
+    /**
+     * Clears the map for the next run, the cells hit only unless there were too many.
+     */
+    public void clear() {
+        hitCount = -1;
+        try {
+            clear.invokeExact();
+        } catch (Throwable throwable) {
+            throw rethrow(throwable);
+        }
+    }
+
+    /**
+     * Adds the coverage of every thread to the map, only needed with thread-local coverage.
+     */
+    public void merge() {
+        try {
+            merge.invokeExact();
+        } catch (Throwable throwable) {
+            throw rethrow(throwable);
+        }
+    }
+
+    /**
+     * Gathers the cells hit by the last run for {@link #getHits()}.
+     *
+     * @return the number of cells hit or -1 if they weren't all recorded
+     */
+    public int collect() {
+        int count;
+        try {
+            count = (int) touchedCount.invokeExact();
+        } catch (Throwable throwable) {
+            throw rethrow(throwable);
+        }
+        if (count > touched.length) {
+            hitCount = -1;
+            return hitCount;
+        }
+        System.arraycopy(touched, 0, hits, 0, count);
+        Arrays.sort(hits, 0, count);
+        int distinct = 0;
+        for (int i = 0; i < count; i++) {
+            int index = hits[i];
+            // a repeat comes from a cell wrapping around, which may have stopped at zero
+            if (map[index] != 0 && (distinct == 0 || hits[distinct - 1] != index)) {
+                hits[distinct++] = index;
+            }
+        }
+        hitCount = distinct;
+        return hitCount;
+    }
+
+    /**
+     * @return the indices of the non-zero cells in ascending order, valid up to {@link #getHitCount()}
+     */
+    public int[] getHits() {
+        return hits;
+    }
+
+    /**
+     * @return the number of cells hit by the last collected run or -1 if unknown
+     */
+    public int getHitCount() {
+        return hitCount;
+    }
+}
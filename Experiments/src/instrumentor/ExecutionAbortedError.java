@@ -0,0 +1,16 @@
+package instrumentor;
+
+/**
+ * Thrown by the abort checks into an execution that ran past its time-out, see {@link AbortCheck}.
+ *
+ * @author Derrick Lockwood
+ * @created 2026-10-17.
+ */
+public class ExecutionAbortedError extends Error {
+
+    private static final long serialVersionUID = 1L;
+
+    public ExecutionAbortedError() {
+        super("Execution aborted after time-out");
+    }
+}
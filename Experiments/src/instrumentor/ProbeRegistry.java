@@ -0,0 +1,154 @@
+package instrumentor;
+
+import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+
+/**
+ * Hands out the ids of the probes {@link AFLMethodVisitor} adds and keeps track of which probe holds which
+ * id across everything instrumented in this JVM.
+ * <p>
+ * An id is a hash of the class, the method's name and descriptor and the probe's index within the method,
+ * so the same bytecode gets the same ids in every class loader, every JVM and on every machine, and coverage
+ * maps of different runs can be compared. The random suffixes ByteBuddy gives the methods it moves are
+ * stripped first. Two different probes with the same id are a collision: they count as one location in
+ * the coverage map. Every collision is logged when the second probe is instrumented and all of them are in
+ * {@link #getReport()}.
+ * <p>
+ * The report also has the probes of each instrumented class, next to the number there would be with a
+ * probe at every label and after every jump, see {@link #recordMethod(String, String, String, int, int)}.
+ *
+ * @author Derrick Lockwood
+ * @created 2026-10-17.
+ */
+public class ProbeRegistry {
+
+    public static final int SIZE = CoverageMap.getSize();
+    private static final Pattern GENERATED_SUFFIX = Pattern.compile("\\$(original|accessor)\\$[A-Za-z0-9]+");
+    private static final int MAX_REPORTED = 100;
+    private static final Logger LOGGER = Logger.getLogger(ProbeRegistry.class.getName());
+    // probe holding each id, guarded by the class
+    private static final String[] owners = new String[SIZE];
+    // in the order they were found, for the report
+    private static final Set<String> collisions = new LinkedHashSet<>();
+    private static final Set<String> methods = new HashSet<>();
+    // probes placed and probes at every label of each class
+    private static final Map<String, int[]> classProbes = new TreeMap<>();
+    private static int probeCount;
+
+    private ProbeRegistry() {
+    }
+
+    /**
+     * @param className binary or internal name of the instrumented class
+     * @param index     probe's index within the method, in the order probes are added
+     * @return the id of the probe, the same for the same probe every time
+     */
+    public static int getId(String className, String methodName, String descriptor, int index) {
+        String probe = getMethod(className, methodName, descriptor) + "#" + index;
+        int id = hash(probe) & CoverageMap.getMask();
+        record(id, probe);
+        return id;
+    }
+
+    private static String getMethod(String className, String methodName, String descriptor) {
+        return className.replace('/', '.') + "." + GENERATED_SUFFIX.matcher(methodName).replaceAll("") +
+                descriptor;
+    }
+
+    /**
+     * Counts the probes of an instrumented method once, however many class loaders instrument it.
+     *
+     * @param probes      probes placed in the method
+     * @param labelProbes probes with one at the start, at every label and after every jump
+     */
+    public static synchronized void recordMethod(String className, String methodName, String descriptor,
+            int probes, int labelProbes) {
+        if (methods.add(getMethod(className, methodName, descriptor))) {
+            int[] counts = classProbes.computeIfAbsent(className.replace('/', '.'), name -> new int[2]);
+            counts[0] += probes;
+            counts[1] += labelProbes;
+        }
+    }
+
+    private static synchronized void record(int id, String probe) {
+        String owner = owners[id];
+        if (owner == null) {
+            owners[id] = probe;
+            probeCount++;
+        } else if (!owner.equals(probe)) {
+            // another loader instrumenting the same class gets the same ids, only a different probe collides
+            String collision = id + ": " + owner + " and " + probe;
+            if (collisions.add(collision)) {
+                probeCount++;
+                LOGGER.log(Level.FINE, "Probe id collision " + collision);
+            }
+        }
+    }
+
+    /**
+     * FNV-1a over the probe's name, finished with MurmurHash3's mixing step so the low bits taken as the id
+     * depend on every byte.
+     */
+    static int hash(String probe) {
+        int hash = 0x811c9dc5;
+        for (byte b : probe.getBytes(StandardCharsets.UTF_8)) {
+            hash ^= b & 0xff;
+            hash *= 0x01000193;
+        }
+        hash ^= hash >>> 16;
+        hash *= 0x85ebca6b;
+        hash ^= hash >>> 13;
+        hash *= 0xc2b2ae35;
+        hash ^= hash >>> 16;
+        return hash;
+    }
+
+    public static synchronized int getProbeCount() {
+        return probeCount;
+    }
+
+    public static synchronized int getCollisionCount() {
+        return collisions.size();
+    }
+
+    /**
+     * @return the number of probes and ids in use, the collisions expected for that many probes by chance,
+     * up to {@value #MAX_REPORTED} of the actual ones and the probes of up to {@value #MAX_REPORTED} classes
+     */
+    public static synchronized String getReport() {
+        int ids = probeCount - collisions.size();
+        double expected = probeCount - SIZE * (1 - Math.pow(1 - 1.0 / SIZE, probeCount));
+        StringBuilder stringBuilder = new StringBuilder();
+        stringBuilder.append(probeCount).append(" probes on ").append(ids).append(" of ").append(SIZE)
+                .append(" ids, ").append(collisions.size()).append(" collisions (")
+                .append(String.format("%.1f", expected)).append(" expected)");
+        int reported = 0;
+        for (String collision : collisions) {
+            if (reported++ == MAX_REPORTED) {
+                stringBuilder.append('\n').append("  ...");
+                break;
+            }
+            stringBuilder.append('\n').append("  ").append(collision);
+        }
+        int classes = 0;
+        for (Map.Entry<String, int[]> entry : classProbes.entrySet()) {
+            if (classes++ == MAX_REPORTED) {
+                stringBuilder.append('\n').append("  ...");
+                break;
+            }
+            int[] counts = entry.getValue();
+            stringBuilder.append('\n').append("  ").append(entry.getKey()).append(": ").append(counts[0])
+                    .append(" probes, ").append(counts[1]).append(" at every label (")
+                    .append(String.format("%.0f", 100.0 * (counts[1] - counts[0]) / Math.max(counts[1], 1)))
+                    .append("% fewer)");
+        }
+        return stringBuilder.toString();
+    }
+}
@@ -0,0 +1,108 @@
+package instrumentor;
+
+import mock.StaticSnapshot;
+import net.bytebuddy.asm.AsmVisitorWrapper;
+import net.bytebuddy.description.field.FieldDescription;
+import net.bytebuddy.description.field.FieldList;
+import net.bytebuddy.description.method.MethodList;
+import net.bytebuddy.description.type.TypeDescription;
+import net.bytebuddy.dynamic.DynamicType;
+import net.bytebuddy.implementation.Implementation;
+import net.bytebuddy.jar.asm.ClassVisitor;
+import net.bytebuddy.jar.asm.ClassWriter;
+import net.bytebuddy.jar.asm.MethodVisitor;
+import net.bytebuddy.jar.asm.Type;
+import net.bytebuddy.pool.TypePool;
+
+import static net.bytebuddy.jar.asm.Opcodes.*;
+
+/**
+ * Makes a class report the end of its initialization to {@link StaticSnapshot#initialized(Class)}, which
+ * records its static fields as they are right then.
+ * <p>
+ * The call goes before every return of the class initializer, a class without one gets an initializer
+ * making only the call. Interfaces are left alone, their fields are constants.
+ *
+ * @author Derrick Lockwood
+ * @created 2026-10-17.
+ */
+public class StaticSnapshotClassVisitor extends ClassVisitor {
+
+    private static final String CLASS_INITIALIZER = "<clinit>";
+    private static final String HOOK_OWNER = Type.getInternalName(StaticSnapshot.class);
+    private String className;
+    private boolean skip;
+    private boolean visitedInitializer;
+
+    public StaticSnapshotClassVisitor(ClassVisitor cv) {
+        super(ASM5, cv);
+    }
+
+    @Override
+    public void visit(int version, int access, String name, String signature, String superName,
+            String[] interfaces) {
+        super.visit(version, access, name, signature, superName, interfaces);
+        className = name;
+        // a class constant can only be loaded from Java 5 class files on
+        skip = (access & ACC_INTERFACE) != 0 || (version & 0xffff) < V1_5;
+    }
+
+    @Override
+    public MethodVisitor visitMethod(int access, String name, String descriptor, String signature,
+            String[] exceptions) {
+        MethodVisitor mv = super.visitMethod(access, name, descriptor, signature, exceptions);
+        if (skip || !CLASS_INITIALIZER.equals(name)) {
+            return mv;
+        }
+        visitedInitializer = true;
+        return new MethodVisitor(ASM5, mv) {
+            @Override
+            public void visitInsn(int opcode) {
+                if (opcode == RETURN) {
+                    instrumentHook(mv);
+                }
+                mv.visitInsn(opcode);
+            }
+        };
+    }
+
+    @Override
+    public void visitEnd() {
+        if (!skip && !visitedInitializer) {
+            MethodVisitor mv = super.visitMethod(ACC_STATIC, CLASS_INITIALIZER, "()V", null, null);
+            mv.visitCode();
+            instrumentHook(mv);
+            mv.visitInsn(RETURN);
+            mv.visitMaxs(1, 0);
+            mv.visitEnd();
+        }
+        super.visitEnd();
+    }
+
+    /**
+     * Bytecode translation of this:
+     * <p>
+     * StaticSnapshot.initialized(ThisClass.class);
+     */
+    private void instrumentHook(MethodVisitor mv) {
+        mv.visitLdcInsn(Type.getObjectType(className));
+        mv.visitMethodInsn(INVOKESTATIC, HOOK_OWNER, "initialized", "(Ljava/lang/Class;)V", false);
+    }
+
+    public static DynamicType.Builder<?> applyStaticSnapshot(DynamicType.Builder<?> builder) {
+        return builder.visit(new AsmVisitorWrapper.AbstractBase() {
+            @Override
+            public int mergeWriter(int flags) {
+                return flags | ClassWriter.COMPUTE_MAXS;
+            }
+
+            @Override
+            public ClassVisitor wrap(TypeDescription instrumentedType, ClassVisitor classVisitor,
+                    Implementation.Context implementationContext, TypePool typePool,
+                    FieldList<FieldDescription.InDefinedShape> fields, MethodList<?> methods, int writerFlags,
+                    int readerFlags) {
+                return new StaticSnapshotClassVisitor(classVisitor);
+            }
+        });
+    }
+}
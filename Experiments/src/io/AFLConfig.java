@@ -20,6 +20,17 @@ public class AFLConfig {
     private static final String BYTE_READER_OUT_ONLY = "byte_reader_out_only";
     private static final String REFRESH_OBJECTS = "refresh_objects";
     private static final String LOG_TO_CSV = "log_to_csv";
+    private static final String SHARED_MEMORY_FILE = "shared_memory_file";
+    private static final String INSTRUMENTED_DIR = "instrumented_dir";
+    private static final String MAX_ZOMBIE_THREADS = "max_zombie_threads";
+    private static final String ABORT_CHECKS = "abort_checks";
+    private static final String QUEUE_POLICY = "queue_policy";
+    private static final String QUEUE_MAX_WAIT = "queue_max_wait";
+    private static final String CRASH_DIR = "crash_dir";
+    private static final String CRASH_FRAMES = "crash_frames";
+    private static final String RESET_STATICS = "reset_statics";
+    private static final String THREAD_LOCAL_COVERAGE = "thread_local_coverage";
+    private static final String THREAD_PER_EXECUTION = "thread_per_execution";
 
     private static Map<String, Object> DEFAULTS = new HashMap<>();
 
@@ -31,6 +42,17 @@ public class AFLConfig {
         DEFAULTS.put(BYTE_READER_OUT_ONLY, false);
         DEFAULTS.put(REFRESH_OBJECTS, false);
         DEFAULTS.put(LOG_TO_CSV, null);
+        DEFAULTS.put(SHARED_MEMORY_FILE, null);
+        DEFAULTS.put(INSTRUMENTED_DIR, null);
+        DEFAULTS.put(MAX_ZOMBIE_THREADS, 8);
+        DEFAULTS.put(ABORT_CHECKS, false);
+        DEFAULTS.put(QUEUE_POLICY, "reject");
+        DEFAULTS.put(QUEUE_MAX_WAIT, 1000L);
+        DEFAULTS.put(CRASH_DIR, null);
+        DEFAULTS.put(CRASH_FRAMES, 5);
+        DEFAULTS.put(RESET_STATICS, false);
+        DEFAULTS.put(THREAD_LOCAL_COVERAGE, false);
+        DEFAULTS.put(THREAD_PER_EXECUTION, false);
     }
 
     public final long timeout;
@@ -40,6 +62,50 @@ public class AFLConfig {
     public final Level fileLevel;
     public final File logFile;
     public final File logToCSV;
+    public final File sharedMemoryFile;
+    /**
+     * Instrumented classes of this config's target, null to use the directory given on the command line.
+     */
+    public final File instrumentedDir;
+    /**
+     * Threads stuck in the target that may be abandoned before the process exits to be restarted.
+     */
+    public final int maxZombieThreads;
+    /**
+     * Instrument loops and method entries so a timed-out execution unwinds instead of running on.
+     */
+    public final boolean abortChecks;
+    /**
+     * What to do with a request when the queue is full: reject (the default), block or shed_oldest.
+     */
+    public final String queuePolicy;
+    /**
+     * Longest a request should wait in the queue for a worker in milliseconds, the queue is sized to it.
+     */
+    public final long queueMaxWait;
+    /**
+     * Directory crashes are bucketed into with one input kept per bucket, null to save every crash.
+     */
+    public final File crashDir;
+    /**
+     * Frames from the top of a crash's root cause that decide its bucket.
+     */
+    public final int crashFrames;
+    /**
+     * Restore the static fields of the target's classes before every execution to their values right after
+     * class initialization.
+     */
+    public final boolean resetStatics;
+    /**
+     * Give every thread of the target a coverage map and previous location of its own, merged at the end
+     * of an execution, so the edges of threads running at the same time don't mix.
+     */
+    public final boolean threadLocalCoverage;
+    /**
+     * Run every execution on a new thread, virtual on JDK 21 and later, instead of on the worker's one
+     * execution thread.
+     */
+    public final boolean threadPerExecution;
 
     public AFLConfig() {
         timeout = (long) DEFAULTS.get(TIMEOUT);
@@ -49,6 +115,17 @@ public class AFLConfig {
         byteReaderOutOnly = (boolean) DEFAULTS.get(BYTE_READER_OUT_ONLY);
         refreshObjects = (boolean) DEFAULTS.get(REFRESH_OBJECTS);
         logToCSV = (File) DEFAULTS.get(LOG_TO_CSV);
+        sharedMemoryFile = (File) DEFAULTS.get(SHARED_MEMORY_FILE);
+        instrumentedDir = (File) DEFAULTS.get(INSTRUMENTED_DIR);
+        maxZombieThreads = (int) DEFAULTS.get(MAX_ZOMBIE_THREADS);
+        abortChecks = (boolean) DEFAULTS.get(ABORT_CHECKS);
+        queuePolicy = (String) DEFAULTS.get(QUEUE_POLICY);
+        queueMaxWait = (long) DEFAULTS.get(QUEUE_MAX_WAIT);
+        crashDir = (File) DEFAULTS.get(CRASH_DIR);
+        crashFrames = (int) DEFAULTS.get(CRASH_FRAMES);
+        resetStatics = (boolean) DEFAULTS.get(RESET_STATICS);
+        threadLocalCoverage = (boolean) DEFAULTS.get(THREAD_LOCAL_COVERAGE);
+        threadPerExecution = (boolean) DEFAULTS.get(THREAD_PER_EXECUTION);
     }
 
     public AFLConfig(JSONObject config) {
@@ -59,6 +136,17 @@ public class AFLConfig {
         logFile = getFile(config, LOG_FILE);
         refreshObjects = containsOrDefault(config, REFRESH_OBJECTS);
         logToCSV = getFile(config, LOG_TO_CSV);
+        sharedMemoryFile = getFile(config, SHARED_MEMORY_FILE);
+        instrumentedDir = getFile(config, INSTRUMENTED_DIR);
+        maxZombieThreads = ((Number) containsOrDefault(config, MAX_ZOMBIE_THREADS)).intValue();
+        abortChecks = containsOrDefault(config, ABORT_CHECKS);
+        queuePolicy = containsOrDefault(config, QUEUE_POLICY);
+        queueMaxWait = ((Number) containsOrDefault(config, QUEUE_MAX_WAIT)).longValue();
+        crashDir = getFile(config, CRASH_DIR);
+        crashFrames = ((Number) containsOrDefault(config, CRASH_FRAMES)).intValue();
+        resetStatics = containsOrDefault(config, RESET_STATICS);
+        threadLocalCoverage = containsOrDefault(config, THREAD_LOCAL_COVERAGE);
+        threadPerExecution = containsOrDefault(config, THREAD_PER_EXECUTION);
     }
 
     private static File getFile(JSONObject config, String name) {
@@ -0,0 +1,128 @@
+package io;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Formatter;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+
+/**
+ * Hands records to another handler from a background thread so the thread logging never waits on the
+ * console or a file.
+ * <p>
+ * Records go into a ring buffer allocated up front, an {@link ArrayBlockingQueue}, and a daemon thread
+ * publishes them to the target handler. Whatever depends on the moment of logging is settled before the
+ * record is queued: the caller's class and method are inferred and the message is formatted with its
+ * parameters, which may be objects still being changed by the run. Level and filter are the target's,
+ * checked before anything is queued, so a record the target wouldn't print costs nothing more.
+ * <p>
+ * When the buffer is full, records below WARNING are dropped and counted, the next record published is
+ * preceded by a note of how many were lost. WARNING and above wait for room.
+ *
+ * @author Derrick Lockwood
+ * @created 2026-10-17.
+ */
+public class AsyncLogHandler extends Handler {
+
+    public static final int DEFAULT_CAPACITY = 8192;
+    private static final long FLUSH_TIMEOUT = 1000;
+
+    private final Handler target;
+    private final BlockingQueue<LogRecord> buffer;
+    private final AtomicLong dropped = new AtomicLong();
+    private final Thread drainer;
+    private volatile boolean closed;
+
+    public AsyncLogHandler(Handler target) {
+        this(target, DEFAULT_CAPACITY);
+    }
+
+    public AsyncLogHandler(Handler target, int capacity) {
+        this.target = target;
+        buffer = new ArrayBlockingQueue<>(capacity);
+        drainer = new Thread(this::drain, "kelinci-log");
+        drainer.setDaemon(true);
+        drainer.start();
+    }
+
+    public Handler getTarget() {
+        return target;
+    }
+
+    @Override
+    public boolean isLoggable(LogRecord record) {
+        return !closed && target.isLoggable(record);
+    }
+
+    @Override
+    public void publish(LogRecord record) {
+        if (!isLoggable(record)) {
+            return;
+        }
+        // settled now, the drainer would infer its own stack and format later state
+        record.getSourceClassName();
+        if (record.getParameters() != null && record.getParameters().length > 0) {
+            Formatter formatter = target.getFormatter();
+            if (formatter != null) {
+                record.setMessage(formatter.formatMessage(record));
+                record.setParameters(null);
+            }
+        }
+        if (buffer.offer(record)) {
+            return;
+        }
+        if (record.getLevel().intValue() < Level.WARNING.intValue()) {
+            dropped.incrementAndGet();
+            return;
+        }
+        try {
+            buffer.put(record);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void drain() {
+        while (true) {
+            LogRecord record;
+            try {
+                record = buffer.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            long lost = dropped.getAndSet(0);
+            if (lost > 0) {
+                LogRecord note = new LogRecord(Level.WARNING, lost + " log records dropped, logging faster than " +
+                        "they can be written");
+                note.setLoggerName(record.getLoggerName());
+                target.publish(note);
+            }
+            target.publish(record);
+            if (buffer.isEmpty()) {
+                target.flush();
+            }
+        }
+    }
+
+    /**
+     * Waits up to a second for the records queued so far to be handed to the target, then flushes it.
+     */
+    @Override
+    public void flush() {
+        long deadline = System.currentTimeMillis() + FLUSH_TIMEOUT;
+        while (!buffer.isEmpty() && drainer.isAlive() && System.currentTimeMillis() < deadline) {
+            Thread.yield();
+        }
+        target.flush();
+    }
+
+    @Override
+    public void close() throws SecurityException {
+        flush();
+        closed = true;
+        drainer.interrupt();
+        target.close();
+    }
+}
@@ -125,7 +125,8 @@ public class MethodCall {
         ObjectInstantiator<?> methodInstantiator = methodClass.getObjectInstantiator(methodCallMap);
 
         return new MethodCallSession(methodCallback, transformer, methodToCall,
-                methodInstantiator, parameterInstantiators, storedMockInstantiators);
+                methodInstantiator, parameterInstantiators, storedMockInstantiators,
+                transformClassLoader.getStaticSnapshot());
     }
 
     public void overrideMethod(Answer answer, String methodName, String... parameterCanonicalNames) {
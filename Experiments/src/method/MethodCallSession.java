@@ -1,6 +1,8 @@
 package method;
 
+import instrumentor.AbortCheck;
 import method.callbacks.MethodCallback;
+import mock.StaticSnapshot;
 import net.bytebuddy.agent.builder.AgentBuilder;
 import net.bytebuddy.agent.builder.ResettableClassFileTransformer;
 import org.objenesis.instantiator.ObjectInstantiator;
@@ -11,6 +13,7 @@ import java.lang.instrument.Instrumentation;
 import java.lang.management.ManagementFactory;
 import java.lang.management.MemoryPoolMXBean;
 import java.lang.management.MemoryType;
+import java.lang.management.ThreadMXBean;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
@@ -19,6 +22,7 @@ import java.time.Duration;
 import java.time.Instant;
 import java.time.temporal.ChronoUnit;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.Consumer;
 
 /**
@@ -27,6 +31,8 @@ import java.util.function.Consumer;
  */
 public class MethodCallSession {
 
+    private static final ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+
     private MemoryPoolMXBean edenSpace;
     private MemoryPoolMXBean survivorSpace;
     private final ResettableClassFileTransformer transformer;
@@ -35,11 +41,13 @@ public class MethodCallSession {
     private final ObjectInstantiator<?> methodClassInstantiator;
     private final ObjectInstantiator<?>[] parameterInstantiators;
     private final ObjectInstantiator<?>[] storedMockInstantiators;
+    private final StaticSnapshot staticSnapshot;
     private Object[] mockParameters;
+    private boolean measureHeap = true;
 
     MethodCallSession(MethodCallback methodCallback, ResettableClassFileTransformer transformer, Method methodToCall,
             ObjectInstantiator<?> methodClassInstantiator, ObjectInstantiator<?>[] parameterInstantiators,
-            ObjectInstantiator<?>[] storedMockInstantiators) {
+            ObjectInstantiator<?>[] storedMockInstantiators, StaticSnapshot staticSnapshot) {
         this.transformer = transformer;
         this.methodCallback = methodCallback;
         for (MemoryPoolMXBean bean : ManagementFactory.getMemoryPoolMXBeans()) {
@@ -58,9 +66,18 @@ public class MethodCallSession {
         this.methodToCall = methodToCall;
         this.parameterInstantiators = parameterInstantiators;
         this.storedMockInstantiators = storedMockInstantiators;
+        this.staticSnapshot = staticSnapshot;
         mockParameters = new Object[parameterInstantiators.length];
     }
 
+    /**
+     * Every run ends with a full GC to measure the heap in use, which serializes concurrent runs. Without it
+     * {@link MethodData#getDeltaHeapMemory()} is -1.
+     */
+    public void setMeasureHeap(boolean measureHeap) {
+        this.measureHeap = measureHeap;
+    }
+
     public boolean revertClasses(Instrumentation instrumentation) {
         return transformer.reset(instrumentation, AgentBuilder.RedefinitionStrategy.RETRANSFORMATION);
     }
@@ -81,7 +98,7 @@ public class MethodCallSession {
     private Callable<MethodData> getMethodDataCallable(MethodData methodData, Object mockObject,
             Object[] methodParameters) {
         Callable<Object[]> callable = getCallableRunner(edenSpace, survivorSpace, methodToCall, mockObject,
-                methodParameters, false);
+                methodParameters, false, measureHeap);
         return () -> methodData.objectMapFunction().apply(callable.call());
     }
 
@@ -202,6 +219,10 @@ public class MethodCallSession {
                 methodToCall.getReturnType(), methodToCall.getParameterTypes());
         Object mockObject = null;
         try {
+            if (staticSnapshot != null) {
+                // every run starts from the statics as they were after class initialization
+                staticSnapshot.restore();
+            }
             //TODO: Fix Error Handling maybe? The throwables are weird and out of scope in different areas
             if (!Modifier.isStatic(methodToCall.getModifiers())){
                 mockObject = methodClassInstantiator.newInstance();
@@ -220,19 +241,10 @@ public class MethodCallSession {
             return methodData;
         }
         methodCallback.onBefore(methodData);
-        Future<MethodData> future = executorService.submit(
+        Execution execution = new Execution(executorService,
                 getMethodDataCallable(methodData, mockObject, mockParameters));
-        try {
-            if (timeOut > 0) {
-                future.get(timeOut, TimeUnit.MILLISECONDS);
-            } else {
-                future.get();
-            }
-        } catch (InterruptedException | ExecutionException | TimeoutException e) {
-            methodData.setError(e, Duration.of(timeOut, ChronoUnit.MILLIS));
-        } finally {
-            future.cancel(true);
-        }
+        long deadline = timeOut > 0 ? System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeOut) : 0;
+        execution.await(methodData, timeOut, deadline);
         methodCallback.onAfter(methodData);
         return methodData;
     }
@@ -245,6 +257,53 @@ public class MethodCallSession {
         return runMethod(executorService, -1, false);
     }
 
+    /**
+     * Runs {@code n} executions at once, each submitted to {@code executorService} on its own, and waits for all
+     * of them against one deadline. Like a structured task scope, nothing outlives the call: executions still
+     * running at the deadline are cancelled, and aborted if the target has abort checks. With an executor
+     * starting a thread per task ({@link VirtualThreads#newThreadPerTaskExecutor()}) the executions don't queue
+     * behind each other.
+     * <p>
+     * Unlike {@link #runMethod(ExecutorService, long, boolean)}, every execution gets its own parameters, but the
+     * target and its answers have to cope with concurrent calls.
+     */
+    public MethodData[] runConcurrentMethods(ExecutorService executorService, int n, long timeOut) {
+        MethodData[] methodData = new MethodData[n];
+        Execution[] executions = new Execution[n];
+        for (int i = 0; i < n; i++) {
+            Object mockObject = null;
+            Object[] parameters = new Object[parameterInstantiators.length];
+            methodData[i] = new MethodData(null, null, methodToCall.getDeclaringClass(),
+                    methodToCall.getName(),
+                    methodToCall.getReturnType(), methodToCall.getParameterTypes());
+            try {
+                if (!Modifier.isStatic(methodToCall.getModifiers())) {
+                    mockObject = methodClassInstantiator.newInstance();
+                }
+                for (int j = 0; j < parameterInstantiators.length; j++) {
+                    if (parameterInstantiators[j] != null) {
+                        parameters[j] = parameterInstantiators[j].newInstance();
+                    }
+                }
+            } catch (Throwable e) {
+                methodCallback.onBefore(methodData[i]);
+                methodData[i].setOutput(null, e, null, 0, null);
+                methodCallback.onAfter(methodData[i]);
+                continue;
+            }
+            methodCallback.onBefore(methodData[i]);
+            executions[i] = new Execution(executorService, getMethodDataCallable(methodData[i], mockObject, parameters));
+        }
+        long deadline = timeOut > 0 ? System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeOut) : 0;
+        for (int i = 0; i < n; i++) {
+            if (executions[i] != null) {
+                executions[i].await(methodData[i], timeOut, deadline);
+                methodCallback.onAfter(methodData[i]);
+            }
+        }
+        return methodData;
+    }
+
     public MethodData[] runMultipleTimesMethod(ExecutorService executorService, int n, long timeOut,
             boolean sysOutStop) {
         MethodData[] methodData = new MethodData[n];
@@ -263,8 +322,61 @@ public class MethodCallSession {
         return methodToCall.toString();
     }
 
+    /**
+     * An execution submitted to an executor, keeping track of the thread running the target so it can be aborted.
+     */
+    private static class Execution {
+        // the thread running the target while it runs, guarded by itself
+        private final AtomicReference<Thread> runner = new AtomicReference<>();
+        private final Future<MethodData> future;
+
+        Execution(ExecutorService executorService, Callable<MethodData> callable) {
+            future = executorService.submit(() -> {
+                synchronized (runner) {
+                    runner.set(Thread.currentThread());
+                }
+                try {
+                    return callable.call();
+                } finally {
+                    synchronized (runner) {
+                        runner.set(null);
+                        AbortCheck.clear(Thread.currentThread());
+                    }
+                }
+            });
+        }
+
+        /**
+         * Waits until {@code deadline} (from {@link System#nanoTime()}, 0 to wait indefinitely) for the execution
+         * and records a time-out or failure in {@code methodData}.
+         */
+        void await(MethodData methodData, long timeOut, long deadline) {
+            try {
+                if (deadline != 0) {
+                    future.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+                } else {
+                    future.get();
+                }
+            } catch (InterruptedException | ExecutionException | TimeoutException e) {
+                methodData.setError(e, Duration.of(timeOut, ChronoUnit.MILLIS));
+                if (e instanceof TimeoutException) {
+                    // targets with abort checks unwind at their next loop iteration, an interrupt alone is ignored by most
+                    synchronized (runner) {
+                        Thread thread = runner.get();
+                        if (thread != null) {
+                            AbortCheck.abort(thread);
+                        }
+                    }
+                }
+            } finally {
+                future.cancel(true);
+            }
+        }
+    }
+
     private static Callable<Object[]> getCallableRunner(MemoryPoolMXBean edenSpace, MemoryPoolMXBean survivorSpace,
-            Method toRunMethod, Object mockObject, Object[] mockParameters, boolean overrideSystemOut) {
+            Method toRunMethod, Object mockObject, Object[] mockParameters, boolean overrideSystemOut,
+            boolean measureHeap) {
         return () -> {
             long currentHeapBytes = edenSpace.getUsage().getUsed();
             Object returnValue = null;
@@ -277,6 +389,7 @@ public class MethodCallSession {
                 System.setOut(new PrintStream(byteArrayOutputStream, true, StandardCharsets.UTF_8));
             }
             toRunMethod.setAccessible(true);
+            long allocatedBefore = getAllocatedBytes();
             Instant instant = Instant.now();
             try {
                 returnValue = toRunMethod.invoke(mockObject, mockParameters);
@@ -288,6 +401,7 @@ public class MethodCallSession {
                 }
             }
             Duration duration = Duration.between(instant, Instant.now());
+            long allocatedBytes = allocatedBefore < 0 ? -1 : getAllocatedBytes() - allocatedBefore;
 //            long survivorSpaceMemory = survivorSpace.getUsage().getUsed();
 //            long edenSpaceUsage = edenSpace.getUsage().getUsed();
 //            long edenSpaceMax = edenSpace.getUsage().getCommitted();
@@ -295,9 +409,12 @@ public class MethodCallSession {
 //            if (deltaHeapMemory < 0) {
 //                deltaHeapMemory = edenSpaceMax - currentHeapBytes + survivorSpaceMemory;
 //            }
-            Runtime runtime = Runtime.getRuntime();
-            runtime.gc();
-            long deltaHeapMemory = runtime.totalMemory() - runtime.freeMemory();
+            long deltaHeapMemory = -1;
+            if (measureHeap) {
+                Runtime runtime = Runtime.getRuntime();
+                runtime.gc();
+                deltaHeapMemory = runtime.totalMemory() - runtime.freeMemory();
+            }
             String sysOut = null;
             if (overrideSystemOut) {
                 System.setOut(originalOut);
@@ -308,9 +425,26 @@ public class MethodCallSession {
                     returnException,
                     duration,
                     deltaHeapMemory,
-                    sysOut
+                    sysOut,
+                    allocatedBytes
             };
         };
     }
 
+    /**
+     * Bytes allocated so far by the current thread. Unlike the heap in use this only counts the run's own
+     * allocations while other runs go on concurrently, and needs no GC.
+     *
+     * @return the count or -1 if the JVM doesn't keep it
+     */
+    private static long getAllocatedBytes() {
+        if (threadBean instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) threadBean;
+            if (bean.isThreadAllocatedMemoryEnabled()) {
+                return bean.getThreadAllocatedBytes(Thread.currentThread().getId());
+            }
+        }
+        return -1;
+    }
+
 }
@@ -21,6 +21,7 @@ public class MethodData {
     private transient Throwable returnException;
     private transient Duration duration;
     private transient long deltaHeapMemory;
+    private transient long allocatedBytes = -1;
     private transient String systemOut;
 
     MethodData(
@@ -91,10 +92,18 @@ public class MethodData {
         return deltaHeapMemory;
     }
 
+    /**
+     * @return bytes allocated by the thread running the method while it ran, -1 if the JVM can't tell
+     */
+    public long getAllocatedBytes() {
+        return allocatedBytes;
+    }
+
     Function<Object[], MethodData> objectMapFunction() {
         return values -> {
             this.setOutput(values[0], (Exception) values[1], (Duration) values[2], (long) values[3],
                     (String) values[4]);
+            this.allocatedBytes = (long) values[5];
             return this;
         };
     }
@@ -0,0 +1,82 @@
+package method;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Executors running every task on a thread of its own, for
+ * {@link MethodCallSession#runConcurrentMethods(ExecutorService, int, long)} and the workers'
+ * {@code thread_per_execution} mode.
+ * <p>
+ * On JDK 21 and later these are virtual threads. The fuzzer is built for older JDKs as well, so they are
+ * looked up reflectively, without them every task gets a new daemon platform thread instead.
+ *
+ * @author Derrick Lockwood
+ * @created 2026-10-17.
+ */
+public class VirtualThreads {
+
+    private static final Method NEW_VIRTUAL_THREAD_PER_TASK_EXECUTOR = findVirtualThreadPerTaskExecutor();
+    private static final ThreadFactory VIRTUAL_THREAD_FACTORY = findVirtualThreadFactory();
+
+    private static Method findVirtualThreadPerTaskExecutor() {
+        try {
+            return Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+
+    private static ThreadFactory findVirtualThreadFactory() {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            // the builder's class is internal, its factory is called through the public interface
+            Method factory = Class.forName("java.lang.Thread$Builder").getMethod("factory");
+            return (ThreadFactory) factory.invoke(builder);
+        } catch (NoSuchMethodException | ClassNotFoundException e) {
+            return null;
+        } catch (IllegalAccessException | InvocationTargetException e) {
+            throw new IllegalStateException("Can't create virtual thread factory", e);
+        }
+    }
+
+    /**
+     * @return true if this JVM has virtual threads
+     */
+    public static boolean isSupported() {
+        return NEW_VIRTUAL_THREAD_PER_TASK_EXECUTOR != null;
+    }
+
+    /**
+     * @return a factory of virtual threads, or {@code platformFactory} if this JVM has none
+     */
+    public static ThreadFactory getThreadFactory(ThreadFactory platformFactory) {
+        return VIRTUAL_THREAD_FACTORY != null ? VIRTUAL_THREAD_FACTORY : platformFactory;
+    }
+
+    /**
+     * @return an executor starting a new thread for every task, virtual where supported
+     */
+    public static ExecutorService newThreadPerTaskExecutor() {
+        if (NEW_VIRTUAL_THREAD_PER_TASK_EXECUTOR != null) {
+            try {
+                return (ExecutorService) NEW_VIRTUAL_THREAD_PER_TASK_EXECUTOR.invoke(null);
+            } catch (IllegalAccessException | InvocationTargetException e) {
+                throw new IllegalStateException("Can't create virtual thread executor", e);
+            }
+        }
+        ThreadFactory threadFactory = Executors.defaultThreadFactory();
+        // no queue and no idle time, so every task starts a thread of its own
+        return new ThreadPoolExecutor(0, Integer.MAX_VALUE, 0L, TimeUnit.MILLISECONDS, new SynchronousQueue<>(), r -> {
+            Thread thread = threadFactory.newThread(r);
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+}
@@ -12,17 +12,22 @@ import java.util.logging.*;
  */
 public class LogMethodCallback implements MethodCallback {
 
-    private static final Level VERBOSE_LEVEL = Level.INFO;
+    private static final Level DEFAULT_LEVEL = Level.INFO;
     private final Logger logger;
     private final boolean verbose;
+    private final Level level;
 
     private LogMethodCallback(Logger logger, boolean verbose, Handler... handlers) {
+        this(logger, verbose, DEFAULT_LEVEL, handlers);
+    }
+
+    private LogMethodCallback(Logger logger, boolean verbose, Level level, Handler... handlers) {
         this.logger = logger;
         for (Handler handler : handlers) {
             this.logger.addHandler(handler);
         }
         this.verbose = verbose;
-
+        this.level = level;
     }
 
     public static MethodCallback create(Logger logger, boolean verbose, Handler... handlers) {
@@ -33,6 +38,14 @@ public class LogMethodCallback implements MethodCallback {
         return new LogMethodCallback(logger, verbose);
     }
 
+    /**
+     * Logs every call at {@code level} instead of INFO, for callbacks on the execution path whose output
+     * should only be built when asked for.
+     */
+    public static MethodCallback create(Logger logger, boolean verbose, Level level) {
+        return new LogMethodCallback(logger, verbose, level);
+    }
+
     public static MethodCallback create(
             String subSystemName,
             Level level,
@@ -60,26 +73,26 @@ public class LogMethodCallback implements MethodCallback {
     private void entering(String sourceClass, String sourceMethod, Object... params) {
         StringBuilder msg = new StringBuilder("ENTER");
         if (params == null) {
-            logger.logp(VERBOSE_LEVEL, sourceClass, sourceMethod, msg.toString());
+            logger.logp(level, sourceClass, sourceMethod, msg.toString());
             return;
         }
-        if (!logger.isLoggable(VERBOSE_LEVEL))
+        if (!logger.isLoggable(level))
             return;
         for (int i = 0; i < params.length; i++) {
             msg.append(" {").append(i).append("}");
         }
-        logger.logp(VERBOSE_LEVEL, sourceClass, sourceMethod, msg.toString(), params);
+        logger.logp(level, sourceClass, sourceMethod, msg.toString(), params);
     }
 
     private void exiting(String sourceClass, String sourceMethod, Object result) {
-        logger.logp(VERBOSE_LEVEL, sourceClass, sourceMethod, "RETURN {0}", result);
+        logger.logp(level, sourceClass, sourceMethod, "RETURN {0}", result);
     }
 
     private void throwing(String sourceClass, String sourceMethod, Throwable thrown) {
-        if (!logger.isLoggable(VERBOSE_LEVEL)) {
+        if (!logger.isLoggable(level)) {
             return;
         }
-        LogRecord lr = new LogRecord(VERBOSE_LEVEL, "THROW");
+        LogRecord lr = new LogRecord(level, "THROW");
         lr.setSourceClassName(sourceClass);
         lr.setSourceMethodName(sourceMethod);
         lr.setThrown(thrown);
@@ -98,8 +111,10 @@ public class LogMethodCallback implements MethodCallback {
 
     @Override
     public void onAfter(MethodData methodData) {
-        logger.logp(Level.INFO, methodData.getDeclaringClass().getName(), methodData.getMethodName(),
-                methodData.toString());
+        if (logger.isLoggable(level)) {
+            logger.logp(level, methodData.getDeclaringClass().getName(), methodData.getMethodName(),
+                    methodData.toString());
+        }
         if (methodData.getReturnException() != null) {
             Throwable throwable = methodData.getReturnException().getCause();
             if (throwable == null) {
@@ -0,0 +1,192 @@
+package mock;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Static fields of the classes of one {@link TransformClassLoader} as they were right after each class was
+ * initialized, restored before every execution so a target's caches and counters don't carry over from one
+ * run to the next.
+ * <p>
+ * Classes transformed by the loader call {@link #initialized(Class)} at the end of their initializer, see
+ * {@link instrumentor.StaticSnapshotClassVisitor}, which records them then. A class first used during a run is
+ * recorded then and restored from the next run on. For every field a setter is looked up once when the class
+ * is recorded, a restore only invokes them.
+ * <p>
+ * Non-final fields get their value back. When a field holds an array, a {@link Collection} or a {@link Map},
+ * final or not, its contents are copied as well and put back if they changed, as most caches are maps. Other
+ * objects are restored by reference only, what changed inside them stays changed.
+ * Synthetic fields are left alone, ByteBuddy keeps the answers of mocked methods in them.
+ *
+ * @author Derrick Lockwood
+ * @created 2026-10-17.
+ */
+public class StaticSnapshot {
+
+    private static final Logger LOGGER = Logger.getLogger(StaticSnapshot.class.getName());
+    private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+    private static final MethodType SETTER_TYPE = MethodType.methodType(void.class, Object.class);
+
+    // a thread abandoned by a timed-out run may still initialize classes while the next run restores
+    private final List<FieldState> fields = new CopyOnWriteArrayList<>();
+    private final List<String> classNames = new CopyOnWriteArrayList<>();
+
+    /**
+     * Called by a transformed class at the end of its initializer, records its static fields if its loader
+     * keeps a snapshot. Never throws, a failure only leaves the class out of the snapshot.
+     */
+    public static void initialized(Class<?> type) {
+        ClassLoader classLoader = type.getClassLoader();
+        if (!(classLoader instanceof TransformClassLoader)) {
+            return;
+        }
+        StaticSnapshot staticSnapshot = ((TransformClassLoader) classLoader).getStaticSnapshot();
+        if (staticSnapshot != null) {
+            staticSnapshot.record(type);
+        }
+    }
+
+    void record(Class<?> type) {
+        List<FieldState> recorded = new ArrayList<>();
+        try {
+            for (Field field : type.getDeclaredFields()) {
+                int modifiers = field.getModifiers();
+                if (!Modifier.isStatic(modifiers) || field.isSynthetic()) {
+                    continue;
+                }
+                field.setAccessible(true);
+                Object value = field.get(null);
+                if (!Modifier.isFinal(modifiers)) {
+                    recorded.add(new ValueState(LOOKUP.unreflectSetter(field).asType(SETTER_TYPE), value));
+                }
+                // the field is set back to the same object first, then what's inside it
+                if (value != null && value.getClass().isArray()) {
+                    recorded.add(new ArrayState(value));
+                } else if (value instanceof Collection) {
+                    recorded.add(new CollectionState((Collection<?>) value));
+                } else if (value instanceof Map) {
+                    recorded.add(new MapState((Map<?, ?>) value));
+                }
+            }
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            LOGGER.log(Level.WARNING, "Can't record static fields of " + type.getName() + ", they won't be restored",
+                    e);
+            return;
+        }
+        fields.addAll(recorded);
+        classNames.add(type.getName());
+    }
+
+    /**
+     * Puts every recorded static field back as it was after its class was initialized.
+     */
+    public void restore() {
+        for (FieldState field : fields) {
+            field.restore();
+        }
+    }
+
+    /**
+     * @return the names of the classes recorded so far
+     */
+    public List<String> getClassNames() {
+        return classNames;
+    }
+
+    public int getFieldCount() {
+        return fields.size();
+    }
+
+    private interface FieldState {
+        void restore();
+    }
+
+    private static class ValueState implements FieldState {
+        private final MethodHandle setter;
+        private final Object value;
+
+        ValueState(MethodHandle setter, Object value) {
+            this.setter = setter;
+            this.value = value;
+        }
+
+        @Override
+        public void restore() {
+            try {
+                setter.invokeExact(value);
+            } catch (Throwable throwable) {
+                throw new IllegalStateException("Can't restore static field", throwable);
+            }
+        }
+    }
+
+    private static class ArrayState implements FieldState {
+        private final Object array;
+        private final Object copy;
+        private final int length;
+
+        ArrayState(Object array) {
+            this.array = array;
+            length = Array.getLength(array);
+            copy = Array.newInstance(array.getClass().getComponentType(), length);
+            System.arraycopy(array, 0, copy, 0, length);
+        }
+
+        @Override
+        public void restore() {
+            System.arraycopy(copy, 0, array, 0, length);
+        }
+    }
+
+    private static class CollectionState implements FieldState {
+        private final Collection<Object> collection;
+        private final List<Object> copy;
+
+        @SuppressWarnings("unchecked")
+        CollectionState(Collection<?> collection) {
+            this.collection = (Collection<Object>) collection;
+            copy = new ArrayList<>(collection);
+        }
+
+        @Override
+        public void restore() {
+            boolean changed = collection instanceof List ? !collection.equals(copy) :
+                    collection.size() != copy.size() || !collection.containsAll(copy);
+            if (changed) {
+                collection.clear();
+                collection.addAll(copy);
+            }
+        }
+    }
+
+    private static class MapState implements FieldState {
+        private final Map<Object, Object> map;
+        private final Map<Object, Object> copy;
+
+        @SuppressWarnings("unchecked")
+        MapState(Map<?, ?> map) {
+            this.map = (Map<Object, Object>) map;
+            copy = new LinkedHashMap<>(map);
+        }
+
+        @Override
+        public void restore() {
+            if (!map.equals(copy)) {
+                map.clear();
+                map.putAll(copy);
+            }
+        }
+    }
+}
@@ -1,6 +1,9 @@
 package mock;
 
 import instrumentor.AFLMethodVisitor;
+import instrumentor.AFLPathMem;
+import instrumentor.CoverageView;
+import instrumentor.StaticSnapshotClassVisitor;
 import mock.answers.Answer;
 import net.bytebuddy.agent.ByteBuddyAgent;
 import net.bytebuddy.agent.builder.AgentBuilder;
@@ -18,6 +21,8 @@ import org.objenesis.instantiator.ObjectInstantiator;
 
 import javax.sound.midi.Instrument;
 import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
 import java.lang.instrument.Instrumentation;
 import java.lang.reflect.Method;
 import java.net.MalformedURLException;
@@ -28,14 +33,22 @@ import java.util.Map;
 import java.util.concurrent.Callable;
 
 /**
+ * Loads the instrumented classes child-first, so every loader holds its own transformed copy of them.
+ * The coverage map ({@link AFLPathMem}) is defined again in every loader as well, which keeps the
+ * coverage of classes in different loaders apart.
+ *
  * @author Derrick Lockwood
  * @created 10/23/18.
  */
 public class TransformClassLoader extends URLClassLoader implements AgentBuilder.Transformer {
+    private static final String COVERAGE_CLASS = AFLPathMem.class.getName();
     private final Map<String, TransformMockClass> transformMap;
     private final Objenesis objenesis;
     private ElementMatcher.Junction<? super TypeDescription> transformedTypes;
     private ElementMatcher.Junction<? super TypeDescription> transformedPackages;
+    private boolean abortChecks = false;
+    private boolean threadLocalCoverage = false;
+    private StaticSnapshot staticSnapshot;
 
     public TransformClassLoader(String... urlPaths) throws MalformedURLException {
         this(toURLs(urlPaths));
@@ -54,8 +67,9 @@ public class TransformClassLoader extends URLClassLoader implements AgentBuilder
     }
 
     public AgentBuilder transformAgentBuilder(AgentBuilder agentBuilder) {
+        // only transform classes of this loader, other loaders carry their own answers
         return agentBuilder
-                .type(transformedPackages.or(transformedTypes))
+                .type(transformedPackages.or(transformedTypes), ElementMatchers.is(this))
                 .transform(this);
     }
 
@@ -90,10 +104,91 @@ public class TransformClassLoader extends URLClassLoader implements AgentBuilder
         return t;
     }
 
+    /**
+     * Adds {@link instrumentor.AbortCheck}s to the classes transformed from now on, so a timed-out
+     * execution can be stopped.
+     */
+    public void setAbortChecks(boolean abortChecks) {
+        this.abortChecks = abortChecks;
+    }
+
+    public boolean isAbortChecks() {
+        return abortChecks;
+    }
+
+    /**
+     * Makes the classes transformed from now on write their coverage per thread, it only reaches the
+     * coverage map once merged, see {@link CoverageView#merge()}.
+     */
+    public void setThreadLocalCoverage(boolean threadLocalCoverage) {
+        this.threadLocalCoverage = threadLocalCoverage;
+    }
+
+    public boolean isThreadLocalCoverage() {
+        return threadLocalCoverage;
+    }
+
+    /**
+     * Records the static fields of the classes transformed from now on after they are initialized, so they
+     * can be restored between executions, see {@link StaticSnapshot}.
+     */
+    public void setResetStatics(boolean resetStatics) {
+        staticSnapshot = resetStatics ? new StaticSnapshot() : null;
+    }
+
+    /**
+     * @return the static fields recorded so far or null if they aren't reset
+     */
+    public StaticSnapshot getStaticSnapshot() {
+        return staticSnapshot;
+    }
+
     public void addURL(URL url) {
         super.addURL(url);
     }
 
+    /**
+     * @return the coverage map written by the classes of this loader with what it takes to clear it, merge
+     * it and read only the cells hit
+     */
+    public CoverageView getCoverageView() throws ReflectiveOperationException {
+        return new CoverageView(loadClass(COVERAGE_CLASS));
+    }
+
+    @Override
+    protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+        synchronized (getClassLoadingLock(name)) {
+            Class<?> loadedClass = findLoadedClass(name);
+            if (loadedClass == null) {
+                String resource = name.replace('.', '/') + ".class";
+                if (COVERAGE_CLASS.equals(name)) {
+                    loadedClass = defineCopy(name, resource);
+                } else if (findResource(resource) != null) {
+                    loadedClass = findClass(name);
+                }
+            }
+            if (loadedClass == null) {
+                return super.loadClass(name, resolve);
+            }
+            if (resolve) {
+                resolveClass(loadedClass);
+            }
+            return loadedClass;
+        }
+    }
+
+    private Class<?> defineCopy(String name, String resource) throws ClassNotFoundException {
+        try (InputStream inputStream = getParent().getResourceAsStream(resource)) {
+            if (inputStream == null) {
+                throw new ClassNotFoundException(name);
+            }
+            byte[] bytes = inputStream.readAllBytes();
+            return defineClass(name, bytes, 0, bytes.length);
+        } catch (IOException e) {
+            throw new ClassNotFoundException(name, e);
+        }
+    }
+
     public void addAppPackage(String packageName) {
         transformedPackages = transformedPackages.or(ElementMatchers.nameContains(packageName));
     }
@@ -101,11 +196,15 @@ public class TransformClassLoader extends URLClassLoader implements AgentBuilder
     @Override
     public DynamicType.Builder<?> transform(DynamicType.Builder<?> builder, TypeDescription typeDescription,
             ClassLoader classLoader, JavaModule module) {
+        if (staticSnapshot != null) {
+            builder = StaticSnapshotClassVisitor.applyStaticSnapshot(builder);
+        }
         if (transformedTypes.matches(typeDescription)) {
             return transformMap.get(typeDescription.getCanonicalName()).transform(builder);
         } else {
             //No transform class but still needs AFL transformation
-            return AFLMethodVisitor.applyAFLTransformation(builder, ElementMatchers.any());
+            return AFLMethodVisitor.applyAFLTransformation(builder, ElementMatchers.any(), abortChecks,
+                    threadLocalCoverage);
         }
     }
 
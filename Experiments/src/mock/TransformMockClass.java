@@ -124,7 +124,9 @@ public class TransformMockClass implements TransformClassLoader.Transformer, Moc
         for (TransformClassLoader.Transformer transformer : transformers) {
             builder = transformer.transform(builder);
         }
-        builder = AFLMethodVisitor.applyAFLTransformation(builder, ElementMatchers.not(transformedMethods));
+        builder = AFLMethodVisitor.applyAFLTransformation(builder, ElementMatchers.not(transformedMethods),
+                tiedClassLoader != null && tiedClassLoader.isAbortChecks(),
+                tiedClassLoader != null && tiedClassLoader.isThreadLocalCoverage());
 
         return builder;
     }
@@ -0,0 +1,73 @@
+package afl;
+
+import org.junit.Assert;
+import org.junit.Test;
+import util.BaseTest;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * @author Derrick Lockwood
+ * @created 2026-10-17.
+ */
+public class AdmissionQueueTest extends BaseTest {
+
+    public AdmissionQueueTest() {
+        super(AdmissionQueue.class);
+    }
+
+    private static AdmissionQueue<Integer> fill(AdmissionQueue.Policy policy, long maxWait) throws Exception {
+        AdmissionQueue<Integer> queue = new AdmissionQueue<>(policy, 1, maxWait);
+        for (int i = 0; i < AdmissionQueue.INITIAL_CAPACITY; i++) {
+            Assert.assertNull(queue.offer(i));
+        }
+        return queue;
+    }
+
+    @Test
+    public void testReject() throws Exception {
+        AdmissionQueue<Integer> queue = fill(AdmissionQueue.Policy.REJECT, 1000);
+        Assert.assertEquals(100, (int) queue.offer(100));
+        Assert.assertEquals(1, queue.getRejectedCount());
+        Assert.assertEquals(AdmissionQueue.INITIAL_CAPACITY, queue.getDepth());
+        Assert.assertEquals(0, (int) queue.poll());
+    }
+
+    @Test
+    public void testShedOldest() throws Exception {
+        AdmissionQueue<Integer> queue = fill(AdmissionQueue.Policy.SHED_OLDEST, 1000);
+        Assert.assertEquals(0, (int) queue.offer(100));
+        Assert.assertEquals(1, queue.getShedCount());
+        Assert.assertEquals(AdmissionQueue.INITIAL_CAPACITY, queue.getDepth());
+        Assert.assertEquals(1, (int) queue.poll());
+    }
+
+    @Test
+    public void testBlockLeavesRequestToCaller() throws Exception {
+        AdmissionQueue<Integer> queue = fill(AdmissionQueue.Policy.BLOCK, 1000);
+        AtomicInteger rooms = new AtomicInteger();
+        queue.setRoomListener(rooms::incrementAndGet);
+        Assert.assertEquals(100, (int) queue.offer(100));
+        Assert.assertEquals(0, queue.getRejectedCount());
+        Assert.assertEquals(0, (int) queue.poll());
+        Assert.assertEquals(1, rooms.get());
+        Assert.assertNull(queue.offer(100));
+        queue.reject();
+        Assert.assertEquals(1, queue.getRejectedCount());
+    }
+
+    @Test
+    public void testCapacityFollowsServiceTime() {
+        AdmissionQueue<Integer> queue = new AdmissionQueue<>(AdmissionQueue.Policy.REJECT, 4, 1000);
+        // 4 workers at 10ms a request get through 400 requests in a second
+        queue.completed(TimeUnit.MILLISECONDS.toNanos(10));
+        Assert.assertEquals(400, queue.getCapacity());
+        Assert.assertEquals(400, queue.getServiceRate(), 0.001);
+        // and no fewer than one a worker however slow they get
+        for (int i = 0; i < 50; i++) {
+            queue.completed(TimeUnit.SECONDS.toNanos(10));
+        }
+        Assert.assertEquals(4, queue.getCapacity());
+    }
+}
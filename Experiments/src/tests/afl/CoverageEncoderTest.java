@@ -0,0 +1,127 @@
+package afl;
+
+import org.junit.Assert;
+import org.junit.Test;
+import util.BaseTest;
+
+import java.util.Arrays;
+
+/**
+ * @author Derrick Lockwood
+ * @created 2026-10-17.
+ */
+public class CoverageEncoderTest extends BaseTest {
+
+    public CoverageEncoderTest() {
+        super(CoverageEncoder.class);
+    }
+
+    private static byte[] createMem(int stride) {
+        byte[] mem = new byte[65536];
+        for (int i = 3; i < mem.length; i += stride) {
+            mem[i] = (byte) (i % 250 + 1);
+        }
+        return mem;
+    }
+
+    private static byte[] decode(byte[] buffer, int length) {
+        int payload = (buffer[3] & 0xFF) | (buffer[4] & 0xFF) << 8 | (buffer[5] & 0xFF) << 16 | (buffer[6] & 0xFF) << 24;
+        Assert.assertEquals(length, CoverageEncoder.HEADER_SIZE + payload);
+        byte[] mem = new byte[1 << buffer[2]];
+        int position = CoverageEncoder.HEADER_SIZE;
+        int end = position + payload;
+        switch (buffer[1]) {
+            case CoverageEncoder.FULL:
+                System.arraycopy(buffer, position, mem, 0, payload);
+                break;
+            case CoverageEncoder.SPARSE:
+                int index = 0;
+                while (position < end) {
+                    int delta = 0;
+                    int shift = 0;
+                    byte b;
+                    do {
+                        b = buffer[position++];
+                        delta |= (b & 0x7F) << shift;
+                        shift += 7;
+                    } while ((b & 0x80) != 0);
+                    index += delta;
+                    mem[index] = buffer[position++];
+                }
+                break;
+            case CoverageEncoder.BITMAP:
+                int value = position + mem.length / 8;
+                for (int i = 0; i < mem.length; i++) {
+                    if ((buffer[position + (i >>> 3)] & (1 << (i & 7))) != 0) {
+                        mem[i] = buffer[value++];
+                    }
+                }
+                Assert.assertEquals(end, value);
+                break;
+            default:
+                Assert.fail("Unknown encoding " + buffer[1]);
+        }
+        return mem;
+    }
+
+    private void assertRoundTrip(int stride, byte expectedEncoding) {
+        CoverageEncoder encoder = new CoverageEncoder();
+        byte[] mem = createMem(stride);
+        Assert.assertEquals(expectedEncoding, encoder.encode(4, mem));
+        Assert.assertEquals(4, encoder.getBuffer()[0]);
+        Assert.assertArrayEquals(mem, decode(encoder.getBuffer(), encoder.getLength()));
+    }
+
+    @Test
+    public void testSparse() {
+        assertRoundTrip(300, CoverageEncoder.SPARSE);
+    }
+
+    @Test
+    public void testBitmap() {
+        assertRoundTrip(3, CoverageEncoder.BITMAP);
+    }
+
+    @Test
+    public void testFull() {
+        assertRoundTrip(1, CoverageEncoder.FULL);
+    }
+
+    @Test
+    public void testLargeMap() {
+        CoverageEncoder encoder = new CoverageEncoder();
+        byte[] mem = new byte[1 << 20];
+        mem[3] = 1;
+        mem[mem.length - 1] = 7;
+        Assert.assertEquals(CoverageEncoder.SPARSE, encoder.encode(0, mem));
+        Assert.assertEquals(20, encoder.getBuffer()[2]);
+        Assert.assertArrayEquals(mem, decode(encoder.getBuffer(), encoder.getLength()));
+    }
+
+    @Test
+    public void testHits() {
+        for (int stride : new int[]{300, 3, 1}) {
+            byte[] mem = createMem(stride);
+            int[] hits = new int[mem.length];
+            int hitCount = 0;
+            for (int i = 0; i < mem.length; i++) {
+                if (mem[i] != 0) {
+                    hits[hitCount++] = i;
+                }
+            }
+            CoverageEncoder scanned = new CoverageEncoder();
+            CoverageEncoder encoder = new CoverageEncoder();
+            Assert.assertEquals(scanned.encode(0, mem), encoder.encode(0, mem, hits, hitCount));
+            Assert.assertEquals(scanned.getLength(), encoder.getLength());
+            Assert.assertArrayEquals(Arrays.copyOf(scanned.getBuffer(), scanned.getLength()),
+                    Arrays.copyOf(encoder.getBuffer(), encoder.getLength()));
+        }
+    }
+
+    @Test
+    public void testEmpty() {
+        CoverageEncoder encoder = new CoverageEncoder();
+        Assert.assertEquals(CoverageEncoder.SPARSE, encoder.encode(0, new byte[65536]));
+        Assert.assertEquals(CoverageEncoder.HEADER_SIZE, encoder.getLength());
+    }
+}
@@ -0,0 +1,76 @@
+package afl;
+
+import org.junit.Assert;
+import org.junit.Test;
+import util.BaseTest;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+
+/**
+ * @author Derrick Lockwood
+ * @created 2026-10-17.
+ */
+public class CrashStoreTest extends BaseTest {
+
+    public CrashStoreTest() {
+        super(CrashStore.class);
+    }
+
+    private static Throwable crash(String method, int line) {
+        IllegalStateException e = new IllegalStateException("bad input " + line);
+        e.setStackTrace(new StackTraceElement[]{
+                new StackTraceElement("app.Parser", method, "Parser.java", line),
+                new StackTraceElement("jdk.internal.reflect.NativeMethodAccessorImpl", "invoke0", null, -2),
+                new StackTraceElement("app.Main", "run", "Main.java", 10)
+        });
+        return new RuntimeException(e);
+    }
+
+    private static CrashStore.InputWriter input(int size) {
+        return file -> {
+            try (OutputStream outputStream = new FileOutputStream(file)) {
+                outputStream.write(new byte[size]);
+            }
+        };
+    }
+
+    private static File createDirectory() throws IOException {
+        File directory = Files.createTempDirectory("crashes").toFile();
+        directory.deleteOnExit();
+        return directory;
+    }
+
+    @Test
+    public void testSignatureNormalized() {
+        Assert.assertEquals(
+                CrashStore.getSignature(CrashStore.getRootCause(crash("parse", 12)), 5),
+                CrashStore.getSignature(CrashStore.getRootCause(crash("parse$original$Xy12AbC9", 40)), 5));
+        Assert.assertEquals("java.lang.IllegalStateException\napp.Parser.parse\napp.Main.run",
+                CrashStore.getSignature(CrashStore.getRootCause(crash("parse", 12)), 5));
+    }
+
+    @Test
+    public void testSmallestInputKept() throws Exception {
+        File directory = createDirectory();
+        CrashStore crashStore = new CrashStore(directory, 5);
+        CrashStore.Bucket bucket = crashStore.record(crash("parse", 1), 100, input(100));
+        Assert.assertSame(bucket, crashStore.record(crash("parse", 2), 200, input(200)));
+        Assert.assertSame(bucket, crashStore.record(crash("parse", 3), 50, input(50)));
+        crashStore.record(crash("tokenize", 1), 10, input(10));
+        Assert.assertEquals(2, crashStore.getBucketCount());
+        Assert.assertEquals(3, bucket.getCount());
+        Assert.assertEquals(50, crashStore.getInput(bucket).length());
+        crashStore.flush();
+
+        CrashStore reloaded = new CrashStore(directory, 5);
+        Assert.assertEquals(2, reloaded.getBucketCount());
+        CrashStore.Bucket again = reloaded.record(crash("parse", 4), 70, input(70));
+        Assert.assertEquals(bucket.getId(), again.getId());
+        Assert.assertEquals(4, again.getCount());
+        Assert.assertEquals(50, reloaded.getInput(again).length());
+    }
+}
@@ -0,0 +1,95 @@
+package afl;
+
+import org.junit.Assert;
+import org.junit.Test;
+import util.BaseTest;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * @author Derrick Lockwood
+ * @created 2026-10-17.
+ */
+public class ExecutionWatchdogTest extends BaseTest {
+
+    private volatile boolean spin = true;
+
+    public ExecutionWatchdogTest() {
+        super(ExecutionWatchdog.class);
+    }
+
+    private static ExecutionWatchdog createWatchdog(boolean threadPerExecution) {
+        return new ExecutionWatchdog(r -> {
+            Thread thread = Executors.defaultThreadFactory().newThread(r);
+            thread.setDaemon(true);
+            return thread;
+        }, 10, threadPerExecution);
+    }
+
+    private static void timeOut(Future<?> future) throws Exception {
+        try {
+            future.get(50, TimeUnit.MILLISECONDS);
+            Assert.fail("Expected a time-out");
+        } catch (TimeoutException e) {
+            future.cancel(true);
+        }
+    }
+
+    @Test
+    public void testInterruptibleKept() throws Exception {
+        ExecutionWatchdog watchdog = createWatchdog(false);
+        ExecutorService service = watchdog.getExecutorService();
+        timeOut(service.submit(() -> {
+            Thread.sleep(10000);
+            return null;
+        }));
+        Assert.assertFalse(watchdog.check());
+        Assert.assertSame(service, watchdog.getExecutorService());
+        watchdog.shutdownNow();
+    }
+
+    @Test
+    public void testSpinningAbandoned() throws Exception {
+        ExecutionWatchdog watchdog = createWatchdog(false);
+        ExecutorService service = watchdog.getExecutorService();
+        try {
+            timeOut(service.submit(() -> {
+                while (spin) {
+                    Thread.onSpinWait();
+                }
+            }));
+            Assert.assertTrue(watchdog.check());
+            Assert.assertEquals(1, watchdog.getZombieCount());
+            Assert.assertNotSame(service, watchdog.getExecutorService());
+            Assert.assertEquals(42, (int) watchdog.getExecutorService().submit(() -> 42).get(1, TimeUnit.SECONDS));
+        } finally {
+            spin = false;
+            watchdog.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testSpinningLeftBehindPerExecution() throws Exception {
+        ExecutionWatchdog watchdog = createWatchdog(true);
+        ExecutorService service = watchdog.getExecutorService();
+        try {
+            timeOut(service.submit(() -> {
+                while (spin) {
+                    Thread.onSpinWait();
+                }
+            }));
+            Assert.assertTrue(watchdog.check());
+            Assert.assertEquals(1, watchdog.getZombieCount());
+            Assert.assertSame(service, watchdog.getExecutorService());
+            Assert.assertEquals(42, (int) service.submit(() -> 42).get(1, TimeUnit.SECONDS));
+            Assert.assertFalse(watchdog.check());
+        } finally {
+            spin = false;
+            watchdog.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package afl;
+
+import org.junit.Assert;
+import org.junit.Test;
+import util.BaseTest;
+
+import java.util.Arrays;
+
+/**
+ * @author Derrick Lockwood
+ * @created 2026-10-17.
+ */
+public class VirginMapTest extends BaseTest {
+
+    public VirginMapTest() {
+        super(VirginMap.class);
+    }
+
+    private static byte[] trace(int... hits) {
+        byte[] trace = new byte[16];
+        for (int i = 0; i < hits.length; i += 2) {
+            trace[hits[i]] = (byte) hits[i + 1];
+        }
+        VirginMap.classify(trace);
+        return trace;
+    }
+
+    @Test
+    public void testClassify() {
+        byte[] trace = trace(0, 1, 1, 3, 2, 5, 3, 7, 4, 200);
+        Assert.assertArrayEquals(new byte[]{1, 4, 8, 8, (byte) 128}, Arrays.copyOf(trace, 5));
+    }
+
+    @Test
+    public void testUpdate() {
+        VirginMap virginMap = new VirginMap(16);
+        Assert.assertEquals(VirginMap.NEW_EDGE, virginMap.update(trace(3, 1)));
+        Assert.assertEquals(VirginMap.NONE, virginMap.update(trace(3, 1)));
+        // 4 and 6 hits fall in the same bucket
+        Assert.assertEquals(VirginMap.NEW_COUNT, virginMap.update(trace(3, 4)));
+        Assert.assertEquals(VirginMap.NONE, virginMap.update(trace(3, 6)));
+        Assert.assertEquals(VirginMap.NEW_EDGE, virginMap.update(trace(3, 1, 9, 2)));
+        Assert.assertEquals(2, virginMap.getCoveredCount());
+    }
+}
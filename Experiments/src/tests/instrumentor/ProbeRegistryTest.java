@@ -0,0 +1,33 @@
+package instrumentor;
+
+import org.junit.Assert;
+import org.junit.Test;
+import util.BaseTest;
+
+/**
+ * @author Derrick Lockwood
+ * @created 2026-10-17.
+ */
+public class ProbeRegistryTest extends BaseTest {
+
+    public ProbeRegistryTest() {
+        super(ProbeRegistry.class);
+    }
+
+    @Test
+    public void testGetId() {
+        int id = ProbeRegistry.getId("test/Target", "run", "(I)V", 0);
+        Assert.assertTrue(id >= 0 && id < ProbeRegistry.SIZE);
+        Assert.assertEquals(id, ProbeRegistry.getId("test.Target", "run", "(I)V", 0));
+        Assert.assertEquals(id, ProbeRegistry.getId("test.Target", "run$original$Ab12Cd34", "(I)V", 0));
+        Assert.assertNotEquals(id, ProbeRegistry.getId("test.Target", "run", "(I)V", 1));
+    }
+
+    @Test
+    public void testRecordMethod() {
+        ProbeRegistry.recordMethod("test/Recorded", "run", "(I)V", 3, 7);
+        ProbeRegistry.recordMethod("test.Recorded", "run$original$Ab12Cd34", "(I)V", 3, 7);
+        ProbeRegistry.recordMethod("test.Recorded", "run", "()V", 1, 3);
+        Assert.assertTrue(ProbeRegistry.getReport().contains("test.Recorded: 4 probes, 10 at every label"));
+    }
+}
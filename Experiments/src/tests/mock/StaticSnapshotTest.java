@@ -0,0 +1,44 @@
+package mock;
+
+import org.junit.Assert;
+import org.junit.Test;
+import util.BaseTest;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * @author Derrick Lockwood
+ * @created 2026-10-17.
+ */
+public class StaticSnapshotTest extends BaseTest {
+
+    public StaticSnapshotTest() {
+        super(StaticSnapshot.class);
+    }
+
+    static class Target {
+        static final Map<String, Integer> CACHE = new HashMap<>();
+        static final int[] COUNTS = {1, 2};
+        static int calls = 5;
+        static Object instance;
+    }
+
+    @Test
+    public void testRestore() {
+        StaticSnapshot staticSnapshot = new StaticSnapshot();
+        staticSnapshot.record(Target.class);
+        Map<String, Integer> cache = Target.CACHE;
+        Target.CACHE.put("a", 1);
+        Target.COUNTS[1] = 7;
+        Target.calls++;
+        Target.instance = new Object();
+
+        staticSnapshot.restore();
+        Assert.assertSame(cache, Target.CACHE);
+        Assert.assertTrue(Target.CACHE.isEmpty());
+        Assert.assertArrayEquals(new int[]{1, 2}, Target.COUNTS);
+        Assert.assertEquals(5, Target.calls);
+        Assert.assertNull(Target.instance);
+    }
+}